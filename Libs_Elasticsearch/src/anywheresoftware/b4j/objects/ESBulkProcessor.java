@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+ package anywheresoftware.b4j.objects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+
+import anywheresoftware.b4a.BA;
+import anywheresoftware.b4a.BA.Events;
+import anywheresoftware.b4a.BA.ShortName;
+import anywheresoftware.b4a.objects.collections.Map;
+import anywheresoftware.b4a.objects.collections.Map.MyMap;
+import anywheresoftware.b4j.objects.collections.JSONWriter;
+
+/**
+ * Collects documents and sends them to the server with bulk requests.
+ *A bulk request is sent when the number of pending documents reaches MaxActions, when the size of the pending documents reaches MaxBytes
+ *or when FlushInterval milliseconds have passed since the last request.
+ *The requests are sent asynchronously. Documents that were rejected by the server because it was too busy (status 429) are resent automatically.
+ *The BulkComplete event is raised after each bulk request.
+ *Example:<code>
+ *bulk.Initialize("bulk", esclient, 1000, 5 * 1024 * 1024, 1000)
+ *For Each m As Map In Documents
+ *	bulk.Add("index1", "type1", "", m)
+ *Next
+ *bulk.Flush
+ *
+ *Sub Bulk_BulkComplete (Success As Boolean, Indexed As Int, Failed As Int)
+ *	If Success = False Then Log(LastException)
+ *End Sub</code>
+ */
+@ShortName("ESBulkProcessor")
+@Events(values={"BulkComplete (Success As Boolean, Indexed As Int, Failed As Int)"})
+public class ESBulkProcessor {
+	private static final int RETRY_STATUS = 429;
+	//delay before the timer tries again to send when all the requests permits are taken.
+	private static final long BUSY_DELAY = 50;
+	private static ScheduledThreadPoolExecutor timer;
+	private BA ba;
+	private String eventName;
+	private RestClientWrapper client;
+	private int maxActions, maxBytes;
+	//guarded by this
+	private ArrayList<String> pending = new ArrayList<String>();
+	private int pendingBytes;
+	//read by the timer without the lock.
+	private volatile long lastFlush;
+	private Semaphore requestsPermits;
+	private ScheduledFuture<?> timerTask;
+	private final AtomicLong indexed = new AtomicLong(), failed = new AtomicLong(), retried = new AtomicLong(),
+			inflight = new AtomicLong();
+	/**
+	 * Sets the maximum number of times that rejected documents will be resent. Default value is 3.
+	 */
+	public int MaxRetries = 3;
+	/**
+	 * Sets the delay (in milliseconds) before the first retry. The delay is doubled with each retry. Default value is 200.
+	 */
+	public int RetryDelay = 200;
+	/**
+	 * Initializes the bulk processor.
+	 *Client - An initialized ESClient.
+	 *MaxActions - Maximum number of documents in each bulk request. Pass 0 to disable.
+	 *MaxBytes - Maximum size (in characters) of each bulk request. Pass 0 to disable.
+	 *FlushInterval - Interval (in milliseconds) for sending the pending documents. Pass 0 to disable.
+	 */
+	public void Initialize(BA ba, String EventName, RestClientWrapper Client, int MaxActions, int MaxBytes, int FlushInterval) {
+		this.ba = ba;
+		this.eventName = EventName.toLowerCase(BA.cul) + "_bulkcomplete";
+		this.client = Client;
+		this.maxActions = MaxActions <= 0 ? Integer.MAX_VALUE : MaxActions;
+		this.maxBytes = MaxBytes <= 0 ? Integer.MAX_VALUE : MaxBytes;
+		requestsPermits = new Semaphore(2);
+		lastFlush = System.currentTimeMillis();
+		if (FlushInterval > 0) {
+			final long interval = FlushInterval;
+			timerTask = getTimer().scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					if (System.currentTimeMillis() - lastFlush >= interval)
+						flushFromTimer();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	private static synchronized ScheduledThreadPoolExecutor getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = defaultFactory.newThread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+	/**
+	 * Sets the maximum number of concurrent bulk requests. Add and Flush will block when this limit is reached.
+	 *Default value is 2. Should be set before documents are added.
+	 */
+	public void setMaxConcurrentRequests(int i) {
+		requestsPermits = new Semaphore(Math.max(1, i));
+	}
+	/**
+	 * Adds a document. Set the Id to an empty string to create the id automatically.
+	 *Documents with the same Index, Type and Id will be replaced.
+	 */
+	public void Add(String Index, String Type, String Id, Map Document) throws Exception {
+		MyMap header = new MyMap();
+		MyMap meta = new MyMap();
+		header.put("index", meta);
+		meta.put("_index", Index);
+		if (Type.length() > 0)
+			meta.put("_type", Type);
+		if (Id.length() > 0)
+			meta.put("_id", Id);
+		JSONWriter writer = new JSONWriter(0);
+		StringBuilder sb = new StringBuilder();
+		sb.append(writer.toString(header)).append('\n').append(writer.toString(Document.getObject())).append('\n');
+		String action = sb.toString();
+		ArrayList<String> toSend = null;
+		synchronized (this) {
+			pending.add(action);
+			pendingBytes += action.length();
+			if (pending.size() >= maxActions || pendingBytes >= maxBytes)
+				toSend = takePending();
+		}
+		if (toSend != null)
+			send(toSend, 0);
+	}
+	/**
+	 * Sends the pending documents.
+	 */
+	public void Flush() {
+		ArrayList<String> toSend;
+		synchronized (this) {
+			if (pending.size() == 0)
+				return;
+			toSend = takePending();
+		}
+		send(toSend, 0);
+	}
+	private void flushFromTimer() {
+		ArrayList<String> toSend;
+		synchronized (this) {
+			if (pending.size() == 0)
+				return;
+			toSend = takePending();
+		}
+		sendFromTimer(toSend, 0);
+	}
+	//must be called while holding the lock.
+	private ArrayList<String> takePending() {
+		ArrayList<String> res = pending;
+		pending = new ArrayList<String>();
+		pendingBytes = 0;
+		lastFlush = System.currentTimeMillis();
+		return res;
+	}
+	//blocks until a request permit is available.
+	private void send(ArrayList<String> actions, int attempt) {
+		Semaphore permits = requestsPermits;
+		permits.acquireUninterruptibly();
+		sendWithPermit(permits, actions, attempt);
+	}
+	//the timer thread is shared by all the processors so it never waits for a permit. The request is rescheduled instead.
+	private void sendFromTimer(final ArrayList<String> actions, final int attempt) {
+		Semaphore permits = requestsPermits;
+		if (permits.tryAcquire() == false) {
+			getTimer().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					sendFromTimer(actions, attempt);
+				}
+			}, BUSY_DELAY, TimeUnit.MILLISECONDS);
+			return;
+		}
+		sendWithPermit(permits, actions, attempt);
+	}
+	private void sendWithPermit(final Semaphore permits, final ArrayList<String> actions, final int attempt) {
+		int size = 0;
+		for (String s : actions)
+			size += s.length();
+		StringBuilder sb = new StringBuilder(size);
+		for (String s : actions)
+			sb.append(s);
+		inflight.addAndGet(actions.size());
+		try {
+			client.client.performRequestAsync("POST", "/_bulk", Collections.<String, String>emptyMap(),
+					new NStringEntity(sb.toString(), ContentType.APPLICATION_JSON), new ResponseListener() {
+
+				@Override
+				public void onSuccess(Response response) {
+					release(permits, actions.size());
+					try {
+						handleResponse(actions, attempt, RestClientWrapper.parseJsonObject(response));
+					} catch (Exception e) {
+						onError(e, actions.size());
+					}
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					release(permits, actions.size());
+					if (exception instanceof ResponseException &&
+							((ResponseException)exception).getResponse().getStatusLine().getStatusCode() == RETRY_STATUS) {
+						if (retry(actions, attempt))
+							return;
+					}
+					onError(exception, actions.size());
+				}
+			});
+		} catch (RuntimeException e) {
+			release(permits, actions.size());
+			throw e;
+		}
+	}
+	private void release(Semaphore permits, int count) {
+		inflight.addAndGet(-count);
+		permits.release();
+	}
+	@SuppressWarnings("unchecked")
+	private void handleResponse(ArrayList<String> actions, int attempt, MyMap res) {
+		int ok = actions.size(), bad = 0;
+		ArrayList<String> rejected = null;
+		if (Boolean.TRUE.equals(res.get("errors"))) {
+			ArrayList<Object> items = (ArrayList<Object>) res.get("items");
+			for (int i = 0;i < items.size() && i < actions.size();i++) {
+				MyMap item = (MyMap) ((MyMap)items.get(i)).values().iterator().next();
+				Object status = item.get("status");
+				int code = status instanceof Number ? ((Number)status).intValue() : 200;
+				if (code < 300)
+					continue;
+				ok--;
+				if (code == RETRY_STATUS) {
+					if (rejected == null)
+						rejected = new ArrayList<String>();
+					rejected.add(actions.get(i));
+				} else {
+					bad++;
+				}
+			}
+		}
+		if (rejected != null && retry(rejected, attempt) == false)
+			bad += rejected.size();
+		indexed.addAndGet(ok);
+		failed.addAndGet(bad);
+		if (bad > 0)
+			ba.setLastException(new RuntimeException("Failed to index " + bad + " document(s)."));
+		ba.raiseEventFromDifferentThread(this, null, 0, eventName, false, new Object[] {bad == 0, ok, bad});
+	}
+	private boolean retry(final ArrayList<String> actions, final int attempt) {
+		if (attempt >= MaxRetries)
+			return false;
+		retried.addAndGet(actions.size());
+		getTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				sendFromTimer(actions, attempt + 1);
+			}
+		}, (long)RetryDelay << attempt, TimeUnit.MILLISECONDS);
+		return true;
+	}
+	private void onError(Exception e, int count) {
+		failed.addAndGet(count);
+		ba.setLastException(e);
+		ba.raiseEventFromDifferentThread(this, null, 0, eventName, false, new Object[] {false, 0, count});
+	}
+	/**
+	 * Returns the number of documents that were not yet sent or that are being sent.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size() + (int)inflight.get();
+	}
+	/**
+	 * Returns the number of documents that were indexed successfully.
+	 */
+	public long getIndexedCount() {
+		return indexed.get();
+	}
+	/**
+	 * Returns the number of documents that failed to be indexed.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+	/**
+	 * Returns the number of documents that were resent after being rejected.
+	 */
+	public long getRetriedCount() {
+		return retried.get();
+	}
+	/**
+	 * Sends the pending documents and stops the flush timer.
+	 */
+	public void Close() {
+		if (timerTask != null) {
+			timerTask.cancel(false);
+			timerTask = null;
+		}
+		Flush();
+	}
+}
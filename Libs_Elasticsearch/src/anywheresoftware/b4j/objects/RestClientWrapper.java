@@ -18,6 +18,7 @@
  package anywheresoftware.b4j.objects;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,28 +30,34 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClient.FailureListener;
 import org.json.JSONException;
 
 import anywheresoftware.b4a.BA;
 import anywheresoftware.b4a.BA.DependsOn;
+import anywheresoftware.b4a.BA.Events;
 import anywheresoftware.b4a.BA.Hide;
 import anywheresoftware.b4a.BA.ShortName;
 import anywheresoftware.b4a.BA.Version;
 import anywheresoftware.b4a.objects.collections.List;
 import anywheresoftware.b4a.objects.collections.Map;
 import anywheresoftware.b4a.objects.collections.Map.MyMap;
-import anywheresoftware.b4j.objects.collections.JSONParser;
 import anywheresoftware.b4j.objects.collections.JSONParser.JSONGenerator;
+import anywheresoftware.b4j.objects.collections.JSONReader;
 
 /**
  * REST client for Elasticsearch.
- *Note that all methods are synchronous. The client is expected to be used in server solutions.
+ *Note that most methods are synchronous. The client is expected to be used in server solutions.
+ *SearchAsync, GetAsync, PerformRawRequestAsync and ESBulkProcessor do not block the calling thread.
  *Each document is identified by the <Index, Type, Id> tuple.
  */
-@Version(1.10f)
+@Version(1.20f)
 @ShortName("ESClient")
+@Events(values={"SearchComplete (Success As Boolean, Response As ESResponse)", "GetComplete (Success As Boolean, Document As Map)",
+		"RequestComplete (Success As Boolean, Response As ESResponse)"})
 @DependsOn(values = {"commons-codec", "httpasyncclient-4.1.2", "httpclient-4.5.2", "httpcore-4.4.5",
 		"httpcore-nio-4.4.5", "rest-6.0.0", "commons-logging-1.1.3", "json"})
 public class RestClientWrapper {
@@ -149,6 +156,87 @@ public class RestClientWrapper {
 		jg.Initialize(m);
 		return jg.ToString();
 	}
+	/**
+	 * Asynchronously makes a search request. The SearchComplete event will be raised when the response is available.
+	 *Returns an object that can be used as the sender filter for Wait For calls.
+	 *Example:<code>
+	 *Dim SenderFilter As Object = esclient.SearchAsync("es", "index1", "", CreateMap("query": CreateMap("match_all": CreateMap())))
+	 *Wait For (SenderFilter) es_SearchComplete (Success As Boolean, Response As ESResponse)
+	 *If Success Then
+	 *	Log(Response.Hits)
+	 *Else
+	 *	Log(LastException)
+	 *End If</code>
+	 */
+	public Object SearchAsync(BA ba, String EventName, String Index, String Type, Map Query) throws Exception {
+		return performRequestAsync(ba, EventName.toLowerCase(BA.cul) + "_searchcomplete", false, "GET", endpoint(Index, Type, "_search"), null, mapToString(Query));
+	}
+	/**
+	 * Asynchronously gets a document. The GetComplete event will be raised when the document is available.
+	 *Success will be False if there is no such document.
+	 *Returns an object that can be used as the sender filter for Wait For calls.
+	 */
+	public Object GetAsync(BA ba, String EventName, String Index, String Type, String Id) {
+		return performRequestAsync(ba, EventName.toLowerCase(BA.cul) + "_getcomplete", true, "GET", endpoint(Index, Type, Id), null, "");
+	}
+	/**
+	 * Asynchronously performs a raw request. The RequestComplete event will be raised when the response is available.
+	 *Returns an object that can be used as the sender filter for Wait For calls.
+	 */
+	public Object PerformRawRequestAsync(BA ba, String EventName, String Method, String Endpoint, Map QueryParameters, String Payload) {
+		return performRequestAsync(ba, EventName.toLowerCase(BA.cul) + "_requestcomplete", false, Method, Endpoint, QueryParameters, Payload);
+	}
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object performRequestAsync(final BA ba, final String eventName, final boolean sourceOnly, String Method, String Endpoint, Map QueryParameters, String Payload) {
+		final Object sender = new Object();
+		client.performRequestAsync(Method, Endpoint,
+				(QueryParameters == null || QueryParameters.IsInitialized() == false) ? Collections.<String, String>emptyMap() : (java.util.Map)QueryParameters.getObject(), 
+				Payload.length() == 0 ? null : new NStringEntity(Payload, ContentType.APPLICATION_JSON), new ResponseListener() {
+
+					@Override
+					public void onSuccess(Response response) {
+						Object result;
+						if (sourceOnly) {
+							try {
+								Map m = new Map();
+								m.setObject((MyMap)parseJsonObject(response).get("_source"));
+								result = m;
+							} catch (Exception e) {
+								onFailure(e);
+								return;
+							}
+						} else {
+							result = new ResponseWrapper(response);
+						}
+						ba.raiseEventFromDifferentThread(sender, null, 0, eventName, false, new Object[] {true, result});
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						ba.setLastException(exception);
+						Object result;
+						if (sourceOnly)
+							result = new Map();
+						else
+							result = new ResponseWrapper(exception instanceof ResponseException ? ((ResponseException)exception).getResponse() : null);
+						ba.raiseEventFromDifferentThread(sender, null, 0, eventName, false, new Object[] {false, result});
+					}
+				});
+		return sender;
+	}
+	//parses the response entity directly from the stream.
+	@Hide
+	public static MyMap parseJsonObject(Response response) throws JSONException, IOException {
+		JSONReader reader = new JSONReader(new InputStreamReader(response.getEntity().getContent(), utf8), 8192);
+		try {
+			Object o = reader.nextValue();
+			if (o instanceof MyMap == false)
+				throw new RuntimeException("JSON Object expected.");
+			return (MyMap)o;
+		} finally {
+			reader.close();
+		}
+	}
 	/**
 	 * Performs a raw request.
 	 *Method - Request method (GET, POST, ...)
@@ -205,9 +293,9 @@ public class RestClientWrapper {
 		 */
 		public Map ResponseAsMap() throws JSONException, ParseException, IOException {
 			if (parsedMap == null) {
-				JSONParser par = new JSONParser();
-				par.Initialize(ResponseAsString());
-				parsedMap = par.NextObject();
+				Map m = new Map();
+				m.setObject(parseJsonObject(response));
+				parsedMap = m;
 			}
 			return parsedMap;
 		}
@@ -17,21 +17,21 @@
  
  package anywheresoftware.b4j.objects.collections;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Map.Entry;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import anywheresoftware.b4a.AbsObjectWrapper;
+import anywheresoftware.b4a.BA.Hide;
 import anywheresoftware.b4a.BA.ShortName;
 import anywheresoftware.b4a.BA.Version;
-import anywheresoftware.b4a.keywords.Common;
 import anywheresoftware.b4a.objects.collections.List;
 import anywheresoftware.b4a.objects.collections.Map;
 import anywheresoftware.b4a.objects.collections.Map.MyMap;
@@ -49,90 +49,113 @@ import anywheresoftware.b4a.objects.collections.Map.MyMap;
  *JSON.Initialize(File.ReadString(File.DirAssets, "example.json")) 'Read the text from a file.
  *Map1 = JSON.NextObject</code>
  */
-@Version(1.30f)
+@Version(1.31f)
 @ShortName("JSONParser")
-public class JSONParser extends AbsObjectWrapper<JSONTokener>{
+public class JSONParser extends AbsObjectWrapper<JSONReader>{
 	/**
 	 * Initializes the object and sets the text that will be parsed.
 	 */
 	public void Initialize(String Text) {
-		JSONTokener j = new JSONTokener(Text);
-		setObject(j);
+		setObject(new JSONReader(Text));
 	}
 	/**
 	 * Parses the text assuming that the top level value is an object.
 	 */
-	public Map NextObject() throws JSONException {
+	public Map NextObject() throws JSONException, IOException {
 		Object o = getObject().nextValue();
-		if (o instanceof JSONObject == false) {
+		if (o instanceof MyMap == false) {
 			throw new RuntimeException("JSON Object expected.");
 		}
 		Map m = new Map();
-		m.setObject(convertObjToMap((JSONObject)o));
+		m.setObject((MyMap)o);
 		return m;
 	}
 	/**
 	 * Parses the text assuming that the top level value is an array.
 	 */
-	public List NextArray() throws JSONException {
+	@SuppressWarnings("unchecked")
+	public List NextArray() throws JSONException, IOException {
 		Object o = getObject().nextValue();
-		if (o instanceof JSONArray == false) {
+		if (o instanceof ArrayList == false) {
 			throw new RuntimeException("JSON Array expected.");
 		}
 		List l = new List();
-		l.setObject(convertObjToList((JSONArray)o));
+		l.setObject((ArrayList<Object>)o);
 		return l;
 	}
 	/**
 	 * Parses the text assuming that the top level value is a simple value.
 	 */
-	public Object NextValue() throws JSONException {
+	public Object NextValue() throws JSONException, IOException {
 		Object o = getObject().nextValue();
-		if (o instanceof JSONObject || o instanceof JSONArray) {
+		if (o instanceof MyMap || o instanceof ArrayList) {
 			throw new RuntimeException("Simple value expected.");
 		}
 		return o;
 	}
-	
-	private MyMap convertObjToMap(JSONObject j) throws JSONException {
-		MyMap m = new MyMap();
-		Iterator<String> it = (Iterator<String>)j.keys();
-		while (it.hasNext()) {
-			String key = it.next();
-			
-			Object value = j.get(key);
-			if (JSONObject.NULL.equals(value)) {
-				m.put(key, null);
-			}
-			else if (value instanceof JSONObject) {
-				m.put(key, convertObjToMap((JSONObject)value));
-			}
-			else if (value instanceof JSONArray) {
-				m.put(key, convertObjToList((JSONArray)value));
-			}
-			else {
-				m.put(key, value);
-			}
+	/**
+	 * Reads JSON documents from a stream, one element at a time.
+	 *This is useful with large documents as it is not required to load the complete document into memory.
+	 *Call Next to move to the next element. The returned value is one of the event constants.
+	 *Example:<code>
+	 *Dim pp As JSONPullParser
+	 *pp.Initialize(File.OpenInput(File.DirApp, "large.json"), "UTF8")
+	 *Do While True
+	 *	Dim e As Int = pp.Next
+	 *	If e = pp.END_DOCUMENT Then Exit
+	 *	If e = pp.START_OBJECT And pp.Name = "item" Then
+	 *		Dim item As Map = pp.ReadValue 'reads the complete object
+	 *		Log(item)
+	 *	End If
+	 *Loop
+	 *pp.Close</code>
+	 */
+	@ShortName("JSONPullParser")
+	public static class JSONPullParser extends AbsObjectWrapper<JSONReader> {
+		public static final int START_OBJECT = JSONReader.START_OBJECT;
+		public static final int END_OBJECT = JSONReader.END_OBJECT;
+		public static final int START_ARRAY = JSONReader.START_ARRAY;
+		public static final int END_ARRAY = JSONReader.END_ARRAY;
+		public static final int VALUE = JSONReader.VALUE;
+		public static final int END_DOCUMENT = JSONReader.END_DOCUMENT;
+		/**
+		 * Initializes the parser. The stream will be read with the given charset (usually UTF8).
+		 */
+		public void Initialize(InputStream In, String Charset) throws IOException {
+			setObject(new JSONReader(new InputStreamReader(In, Charset), 8192));
 		}
-		return m;
-	}
-	private ArrayList<Object> convertObjToList(JSONArray ja) throws JSONException {
-		ArrayList<Object> a = new ArrayList<Object>(ja.length());
-		for (int i = 0;i < ja.length();i++) {
-			Object value = ja.get(i);
-			if (JSONObject.NULL.equals(value))
-				a.add(null);
-			else if (value instanceof JSONObject) {
-					a.add(convertObjToMap((JSONObject)value));
-				}
-				else if (value instanceof JSONArray) {
-					a.add(convertObjToList((JSONArray)value));
-				}
-				else {
-					a.add(value);
-				}
+		/**
+		 * Moves to the next element and returns its type (START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, VALUE or END_DOCUMENT).
+		 */
+		public int Next() throws JSONException, IOException {
+			return getObject().next();
+		}
+		/**
+		 * Returns the key of the current element if it is inside an object. Returns an empty string otherwise.
+		 */
+		public String getName() {
+			String s = getObject().getName();
+			return s == null ? "" : s;
+		}
+		/**
+		 * Returns the current value.
+		 *If the current element is START_OBJECT or START_ARRAY then the complete object or array is read and returned as a Map or List.
+		 *The parser will then continue after the end of this object or array.
+		 */
+		public Object ReadValue() throws JSONException, IOException {
+			Object o = getObject().readValue();
+			if (o instanceof MyMap)
+				return AbsObjectWrapper.ConvertToWrapper(new Map(), o);
+			else if (o instanceof ArrayList)
+				return AbsObjectWrapper.ConvertToWrapper(new List(), o);
+			return o;
+		}
+		/**
+		 * Closes the underlying stream.
+		 */
+		public void Close() throws IOException {
+			getObject().close();
 		}
-		return a;
 	}
 	/**
 	 * This object generates JSON strings.
@@ -146,25 +169,25 @@ public class JSONParser extends AbsObjectWrapper<JSONTokener>{
 		 * Initializes the object with the given Map.
 		 */
 		public void Initialize(Map Map) throws Exception {
-			json = convertMapToJO(Map.getObject());
+			json = Map.getObject();
 		}
 		/**
 		 * Initializes the object with the given List.
 		 */
 		public void Initialize2(List List) throws Exception {
-			json = convertListToJA(List.getObject());
+			json = List.getObject();
 		}
 		/**
 		 * Creates a JSON string from the initialized object.
 		 *This string does not include any extra whitespace.
 		 */
 		public String ToString() {
-			if (json == null)
-				throw new RuntimeException("JSON was not initialized.");
-			if (json instanceof JSONObject)
-				return ((JSONObject)json).toString();
-			else
-				return ((JSONArray)json).toString();
+			checkInitialized();
+			try {
+				return new JSONWriter(0).toString(json);
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
 		}
 		/**
 		 * Creates a JSON string from the initialized object.
@@ -173,80 +196,34 @@ public class JSONParser extends AbsObjectWrapper<JSONTokener>{
 		 *Indent - Number of spaces to add to each level.
 		 */
 		public String ToPrettyString(int Indent) throws JSONException {
-			if (json == null)
-				throw new RuntimeException("JSON was not initialized.");
-			if (json instanceof JSONObject)
-				return ((JSONObject)json).toString(Indent);
-			else
-				return ((JSONArray)json).toString(Indent);
+			checkInitialized();
+			return new JSONWriter(Indent).toString(json);
 		}
-		@SuppressWarnings({ "unchecked", "rawtypes" })
-		private JSONObject convertMapToJO(java.util.Map map) throws JSONException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
-			JSONObject j = new JSONObject();
-			for (Entry e : (Set<Entry>)map.entrySet()) {
-				String key = String.valueOf(e.getKey());
-				Object o = e.getValue();
-				if (o instanceof java.util.Map) {
-					j.put(key, convertMapToJO((java.util.Map)o));
-				}
-				else if (o instanceof Map) {
-					j.put(key, convertMapToJO(((Map)o).getObject()));
-				}
-				else if (o instanceof java.util.List) {
-					j.put(key, convertListToJA((java.util.List)o));
-				}
-				else if (o instanceof List) {
-					j.put(key, convertListToJA(((List)o).getObject()));
-				}
-				else if (o == null) {
-					j.put(key, JSONObject.NULL);
-				}
-				else if (o.getClass().isArray()) {
-					j.put(key, convertListToJA((arrayToList(o)).getObject()));
-				}
-				else {
-					j.put(key, o);
-				}
-			}
-			return j;
+		/**
+		 * Writes the JSON string, without extra whitespace, directly to the output stream (UTF8 encoded).
+		 *This is more efficient than ToString with large objects as the complete string is never created.
+		 *The stream is flushed and is not closed.
+		 *Example:<code>
+		 *Dim jg As JSONGenerator
+		 *jg.Initialize(Data)
+		 *resp.ContentType = "application/json"
+		 *jg.WriteTo(resp.OutputStream)</code>
+		 */
+		public void WriteTo(OutputStream Out) throws JSONException, IOException {
+			checkInitialized();
+			new JSONWriter(0).write(json, new OutputStreamWriter(Out, StandardCharsets.UTF_8));
 		}
-		@SuppressWarnings("unchecked")
-		private JSONArray convertListToJA(java.util.List<Object> list) throws JSONException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
-			JSONArray ja = new JSONArray();
-			for (Object o : list) {
-				if (o instanceof MyMap) {
-					ja.put(convertMapToJO((MyMap)o));
-				}
-				else if (o instanceof Map) {
-					ja.put(convertMapToJO(((Map)o).getObject()));
-				}
-				else if (o instanceof java.util.List) {
-					ja.put(convertListToJA((java.util.List<Object>)o));
-				}
-				else if (o instanceof List) {
-					ja.put(convertListToJA(((List)o).getObject()));
-				}
-				else if (o == null) {
-					ja.put(JSONObject.NULL);
-				}
-				else if (o.getClass().isArray()) {
-					ja.put(convertListToJA((arrayToList(o)).getObject()));
-				}
-				else {
-					ja.put(o);
-				}
-			}
-			return ja;
+		/**
+		 * Writes the JSON string to the given writer. Indent - 0 for compact output.
+		 */
+		@Hide
+		public void writeTo(Writer writer, int indent) throws JSONException, IOException {
+			checkInitialized();
+			new JSONWriter(indent).write(json, writer);
 		}
-		private List arrayToList(Object o) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
-			List l;
-			if (o.getClass().getComponentType().isPrimitive()) {
-				l = (List) Common.class.getMethod("ArrayToList", o.getClass()).invoke(null, o);
-			}
-			else {
-				l = Common.ArrayToList((Object[])o);
-			}
-			return l;
+		private void checkInitialized() {
+			if (json == null)
+				throw new RuntimeException("JSON was not initialized.");
 		}
 	}
 	/**
@@ -283,13 +260,13 @@ public class JSONParser extends AbsObjectWrapper<JSONTokener>{
 		/**
 		 * Converts the string to a Map.
 		 */
-		public Map ToMap() throws JSONException {
+		public Map ToMap() throws JSONException, IOException {
 			return stringToObject().NextObject();
 		}
 		/**
 		 * Converts the string to a List.
 		 */
-		public List ToList() throws JSONException {
+		public List ToList() throws JSONException, IOException {
 			return stringToObject().NextArray();
 		}
 		private JSONParser stringToObject() {
@@ -0,0 +1,493 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package anywheresoftware.b4j.objects.collections;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import anywheresoftware.b4a.BA.Hide;
+import anywheresoftware.b4a.objects.collections.Map.MyMap;
+
+/**
+ * Single pass JSON parser that builds MyMaps and ArrayLists directly.
+ *It accepts the same lenient syntax as org.json.JSONTokener and can read from a String or from a Reader.
+ *The pull methods (next and related) allow reading large documents without loading them completely.
+ */
+@Hide
+public class JSONReader {
+	public static final int START_OBJECT = 1, END_OBJECT = 2, START_ARRAY = 3, END_ARRAY = 4, VALUE = 5, END_DOCUMENT = 6;
+	private static final String LITERAL_TERMINATORS = "{}[]/\\:,=;# \t\f\r\n";
+	private final Reader reader;
+	//set when parsing a string. Used in the error messages.
+	private final String text;
+	private char[] buf;
+	private int pos, limit;
+	//number of characters that were read before the current buffer.
+	private long consumed;
+	//pull parser state
+	private Frame frame;
+	private int lastEvent;
+	private String name;
+	private Object value;
+
+	public JSONReader(String text) {
+		this.text = text;
+		this.reader = null;
+		buf = text.toCharArray();
+		limit = buf.length;
+		if (limit > 0 && buf[0] == '\ufeff')
+			pos = 1;
+	}
+	public JSONReader(Reader reader, int bufferSize) throws IOException {
+		this.text = null;
+		this.reader = reader;
+		buf = new char[Math.max(2, bufferSize)];
+		if (fill() && buf[0] == '\ufeff')
+			pos = 1;
+	}
+	private boolean fill() throws IOException {
+		return fill(0);
+	}
+	//keep - number of characters from the end of the current buffer that are moved to the start of the new buffer.
+	private boolean fill(int keep) throws IOException {
+		if (reader == null)
+			return false;
+		System.arraycopy(buf, limit - keep, buf, 0, keep);
+		consumed += limit - keep;
+		pos = keep;
+		limit = keep;
+		int count;
+		do {
+			count = reader.read(buf, keep, buf.length - keep);
+		} while (count == 0);
+		if (count < 0)
+			return false;
+		limit += count;
+		return true;
+	}
+	private int read() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		return buf[pos++];
+	}
+	//the character that was just read is kept in the buffer, so the callers can step back over it with pos--.
+	private int peek() throws IOException {
+		if (pos == limit && !fill(limit > 0 ? 1 : 0))
+			return -1;
+		return buf[pos];
+	}
+	public JSONException syntaxError(String message) {
+		return new JSONException(message + " at character " + (consumed + pos) + (text != null ? " of " + text : ""));
+	}
+	private int nextClean() throws IOException, JSONException {
+		while (true) {
+			int c = read();
+			switch (c) {
+				case '\t':
+				case ' ':
+				case '\n':
+				case '\r':
+					continue;
+				case '/':
+					int p = peek();
+					if (p == '*') {
+						pos++;
+						int prev = 0;
+						while (true) {
+							int cc = read();
+							if (cc == -1)
+								throw syntaxError("Unterminated comment");
+							if (prev == '*' && cc == '/')
+								break;
+							prev = cc;
+						}
+						continue;
+					} else if (p == '/') {
+						pos++;
+						skipToEndOfLine();
+						continue;
+					}
+					return c;
+				case '#':
+					skipToEndOfLine();
+					continue;
+				default:
+					return c;
+			}
+		}
+	}
+	private void skipToEndOfLine() throws IOException {
+		int c;
+		while ((c = read()) != -1) {
+			if (c == '\r' || c == '\n')
+				break;
+		}
+	}
+	/**
+	 * Reads the next value. Objects and arrays are returned as MyMap and ArrayList. Null values are returned as JSONObject.NULL.
+	 */
+	public Object nextValue() throws IOException, JSONException {
+		int c = nextClean();
+		switch (c) {
+			case -1:
+				throw syntaxError("End of input");
+			case '{':
+				return readObject();
+			case '[':
+				return readArray();
+			case '\'':
+			case '"':
+				return nextString((char) c);
+			default:
+				pos--;
+				return readLiteral();
+		}
+	}
+	private String nextString(char quote) throws IOException, JSONException {
+		StringBuilder builder = null;
+		int start = pos;
+		while (true) {
+			if (pos == limit) {
+				if (builder == null)
+					builder = new StringBuilder();
+				builder.append(buf, start, pos - start);
+				if (!fill())
+					throw syntaxError("Unterminated string");
+				start = 0;
+			}
+			char c = buf[pos++];
+			if (c == quote) {
+				if (builder == null)
+					return new String(buf, start, pos - 1 - start);
+				builder.append(buf, start, pos - 1 - start);
+				return builder.toString();
+			}
+			if (c == '\\') {
+				if (builder == null)
+					builder = new StringBuilder();
+				builder.append(buf, start, pos - 1 - start);
+				builder.append(readEscapeCharacter());
+				start = pos;
+			}
+		}
+	}
+	private char readEscapeCharacter() throws IOException, JSONException {
+		int escaped = read();
+		switch (escaped) {
+			case -1:
+				throw syntaxError("Unterminated escape sequence");
+			case 'u':
+				int v = 0;
+				for (int i = 0;i < 4;i++) {
+					int h = read();
+					if (h == -1)
+						throw syntaxError("Unterminated escape sequence");
+					int d = Character.digit(h, 16);
+					if (d == -1)
+						throw new NumberFormatException("Invalid hex escape sequence");
+					v = (v << 4) + d;
+				}
+				return (char) v;
+			case 't':
+				return '\t';
+			case 'b':
+				return '\b';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			default:
+				return (char) escaped;
+		}
+	}
+	private Object readLiteral() throws IOException, JSONException {
+		//fast path for decimal integers that are fully inside the buffer.
+		int start = pos;
+		int i = pos;
+		boolean negative = false;
+		if (i < limit && buf[i] == '-') {
+			negative = true;
+			i++;
+		}
+		int digitsStart = i;
+		long number = 0;
+		while (i < limit && i - digitsStart < 18) {
+			char c = buf[i];
+			if (c < '0' || c > '9')
+				break;
+			number = number * 10 + (c - '0');
+			i++;
+		}
+		int digits = i - digitsStart;
+		if (digits > 0 && i < limit && LITERAL_TERMINATORS.indexOf(buf[i]) != -1 && (buf[digitsStart] != '0' || digits == 1)) {
+			pos = i;
+			if (negative)
+				number = -number;
+			if (number <= Integer.MAX_VALUE && number >= Integer.MIN_VALUE)
+				return (int) number;
+			return number;
+		}
+		String literal = nextLiteralString();
+		if (literal.length() == 0) {
+			throw syntaxError("Expected literal value");
+		} else if ("null".equalsIgnoreCase(literal)) {
+			return JSONObject.NULL;
+		} else if ("true".equalsIgnoreCase(literal)) {
+			return Boolean.TRUE;
+		} else if ("false".equalsIgnoreCase(literal)) {
+			return Boolean.FALSE;
+		}
+		if (literal.indexOf('.') == -1) {
+			int base = 10;
+			String n = literal;
+			if (n.startsWith("0x") || n.startsWith("0X")) {
+				n = n.substring(2);
+				base = 16;
+			} else if (n.startsWith("0") && n.length() > 1) {
+				n = n.substring(1);
+				base = 8;
+			}
+			try {
+				long longValue = Long.parseLong(n, base);
+				if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+					return (int) longValue;
+				} else {
+					return longValue;
+				}
+			} catch (NumberFormatException e) {
+				//not an integer
+			}
+		}
+		try {
+			return Double.valueOf(literal);
+		} catch (NumberFormatException ignored) {
+		}
+		return literal;
+	}
+	private String nextLiteralString() throws IOException {
+		StringBuilder builder = null;
+		int start = pos;
+		while (true) {
+			if (pos == limit) {
+				if (builder == null)
+					builder = new StringBuilder();
+				builder.append(buf, start, pos - start);
+				if (!fill())
+					return builder.toString();
+				start = 0;
+			}
+			if (LITERAL_TERMINATORS.indexOf(buf[pos]) != -1) {
+				if (builder == null)
+					return new String(buf, start, pos - start);
+				builder.append(buf, start, pos - start);
+				return builder.toString();
+			}
+			pos++;
+		}
+	}
+	//called after the opening brace.
+	private MyMap readObject() throws IOException, JSONException {
+		MyMap result = new MyMap();
+		int first = nextClean();
+		if (first == '}') {
+			return result;
+		} else if (first != -1) {
+			pos--;
+		}
+		while (true) {
+			String key = readName();
+			Object v = nextValue();
+			if (v instanceof Number)
+				checkDouble(((Number)v).doubleValue());
+			result.put(key, v == JSONObject.NULL ? null : v);
+			switch (nextClean()) {
+				case '}':
+					return result;
+				case ';':
+				case ',':
+					continue;
+				default:
+					throw syntaxError("Unterminated object");
+			}
+		}
+	}
+	private String readName() throws IOException, JSONException {
+		Object key = nextValue();
+		if (!(key instanceof String)) {
+			throw syntaxError("Names must be strings, but " + key
+					+ " is of type " + key.getClass().getName());
+		}
+		int separator = nextClean();
+		if (separator != ':' && separator != '=') {
+			throw syntaxError("Expected ':' after " + key);
+		}
+		if (peek() == '>') {
+			pos++;
+		}
+		return (String)key;
+	}
+	private void checkDouble(double d) throws JSONException {
+		if (Double.isInfinite(d) || Double.isNaN(d)) {
+			throw new JSONException("Forbidden numeric value: " + d);
+		}
+	}
+	//called after the opening bracket.
+	private ArrayList<Object> readArray() throws IOException, JSONException {
+		ArrayList<Object> result = new ArrayList<Object>();
+		while (true) {
+			switch (nextClean()) {
+				case -1:
+					throw syntaxError("Unterminated array");
+				case ']':
+					return result;
+				case ',':
+				case ';':
+					//a separator without a value.
+					throw new JSONException("Value at " + result.size() + " is null.");
+				default:
+					pos--;
+			}
+			Object v = nextValue();
+			result.add(v == JSONObject.NULL ? null : v);
+			switch (nextClean()) {
+				case ']':
+					return result;
+				case ',':
+				case ';':
+					if (nextClean() == ']')
+						throw new JSONException("Value at " + result.size() + " is null.");
+					pos--;
+					continue;
+				default:
+					throw syntaxError("Unterminated array");
+			}
+		}
+	}
+	
+	//pull parser
+
+	/**
+	 * Moves to the next event and returns its type.
+	 */
+	public int next() throws IOException, JSONException {
+		lastEvent = nextImpl();
+		return lastEvent;
+	}
+	private int nextImpl() throws IOException, JSONException {
+		name = null;
+		value = null;
+		if (frame == null) {
+			int c = nextClean();
+			if (c == -1)
+				return END_DOCUMENT;
+			pos--;
+			return valueEvent();
+		}
+		Frame f = frame;
+		int c = nextClean();
+		if (f.expectingSeparator) {
+			if (c == (f.object ? '}' : ']')) {
+				frame = f.parent;
+				return f.object ? END_OBJECT : END_ARRAY;
+			}
+			if (c != ',' && c != ';')
+				throw syntaxError(f.object ? "Unterminated object" : "Unterminated array");
+			f.expectingSeparator = false;
+			c = nextClean();
+			if (!f.object && c == ']')
+				throw new JSONException("Value at " + f.count + " is null.");
+		}
+		else if (f.count == 0 && c == (f.object ? '}' : ']')) {
+			frame = f.parent;
+			return f.object ? END_OBJECT : END_ARRAY;
+		}
+		if (c == -1)
+			throw syntaxError(f.object ? "End of input" : "Unterminated array");
+		if (!f.object && (c == ',' || c == ';'))
+			throw new JSONException("Value at " + f.count + " is null.");
+		pos--;
+		f.count++;
+		f.expectingSeparator = true;
+		String key = null;
+		if (f.object)
+			key = readName();
+		int event = valueEvent();
+		name = key;
+		return event;
+	}
+	private int valueEvent() throws IOException, JSONException {
+		int c = nextClean();
+		switch (c) {
+			case -1:
+				throw syntaxError("End of input");
+			case '{':
+				frame = new Frame(frame, true);
+				return START_OBJECT;
+			case '[':
+				frame = new Frame(frame, false);
+				return START_ARRAY;
+			case '\'':
+			case '"':
+				value = nextString((char) c);
+				return VALUE;
+			default:
+				pos--;
+				Object o = readLiteral();
+				value = o == JSONObject.NULL ? null : o;
+				return VALUE;
+		}
+	}
+	/**
+	 * Returns the name of the current value when it is part of an object.
+	 */
+	public String getName() {
+		return name;
+	}
+	/**
+	 * Returns the current value. If the current event is START_OBJECT or START_ARRAY then the complete object or array is read.
+	 */
+	public Object readValue() throws IOException, JSONException {
+		if (lastEvent == START_OBJECT || lastEvent == START_ARRAY) {
+			Object o = lastEvent == START_OBJECT ? readObject() : readArray();
+			frame = frame.parent;
+			lastEvent = VALUE;
+			value = o;
+			return o;
+		}
+		return value;
+	}
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+	}
+	private static class Frame {
+		final Frame parent;
+		final boolean object;
+		int count;
+		boolean expectingSeparator;
+		Frame(Frame parent, boolean object) {
+			this.parent = parent;
+			this.object = object;
+		}
+	}
+}
@@ -0,0 +1,318 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package anywheresoftware.b4j.objects.collections;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import anywheresoftware.b4a.BA.Hide;
+import anywheresoftware.b4a.objects.collections.List;
+import anywheresoftware.b4a.objects.collections.Map;
+
+/**
+ * Writes Maps, Lists and arrays as JSON, directly to a Writer or to a string.
+ *The output is identical to the output of org.json.JSONStringer.
+ *The char buffer is cached per thread and reused.
+ */
+@Hide
+public class JSONWriter {
+	private static final int BUFFER_SIZE = 8192;
+	private static final ThreadLocal<char[]> cachedBuffer = new ThreadLocal<char[]>();
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private final String indent;
+	private char[] buf;
+	private int pos;
+	private Writer out;
+	private StringBuilder sb;
+	private int depth;
+	
+	/**
+	 * Indent - number of spaces to add to each level. Pass 0 for compact output.
+	 */
+	public JSONWriter(int indent) {
+		if (indent > 0) {
+			char[] c = new char[indent];
+			Arrays.fill(c, ' ');
+			this.indent = new String(c);
+		} else {
+			this.indent = null;
+		}
+	}
+	/**
+	 * Returns the JSON string. Root should be a Map or a List (raw or wrapped).
+	 */
+	public String toString(Object root) throws JSONException {
+		sb = new StringBuilder();
+		try {
+			write(root, (Writer)null);
+		} catch (IOException e) {
+			//cannot happen when writing to a StringBuilder.
+			throw new RuntimeException(e);
+		}
+		String s = sb.toString();
+		sb = null;
+		return s;
+	}
+	/**
+	 * Writes the JSON string to the given writer. The writer is flushed but not closed.
+	 */
+	public void write(Object root, Writer writer) throws JSONException, IOException {
+		this.out = writer;
+		buf = cachedBuffer.get();
+		if (buf == null)
+			buf = new char[BUFFER_SIZE];
+		else
+			cachedBuffer.set(null); //in case that this method is called recursively
+		pos = 0;
+		depth = 0;
+		try {
+			writeValue(root);
+			flushBuffer();
+			if (out != null)
+				out.flush();
+		} finally {
+			cachedBuffer.set(buf);
+			buf = null;
+			out = null;
+		}
+	}
+	private void flushBuffer() throws IOException {
+		if (pos > 0) {
+			if (out != null)
+				out.write(buf, 0, pos);
+			else
+				sb.append(buf, 0, pos);
+			pos = 0;
+		}
+	}
+	private void append(char c) throws IOException {
+		if (pos == buf.length)
+			flushBuffer();
+		buf[pos++] = c;
+	}
+	private void append(String s) throws IOException {
+		int len = s.length();
+		if (len > buf.length - pos) {
+			flushBuffer();
+			if (len > buf.length) {
+				if (out != null)
+					out.write(s);
+				else
+					sb.append(s);
+				return;
+			}
+		}
+		s.getChars(0, len, buf, pos);
+		pos += len;
+	}
+	private void newline() throws IOException {
+		if (indent == null)
+			return;
+		append('\n');
+		for (int i = 0;i < depth;i++)
+			append(indent);
+	}
+	@SuppressWarnings("unchecked")
+	private void writeValue(Object o) throws JSONException, IOException {
+		if (o == null || o == JSONObject.NULL) {
+			append("null");
+		} else if (o instanceof String) {
+			writeString((String)o);
+		} else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			append(Long.toString(((Number)o).longValue()));
+		} else if (o instanceof Number) {
+			append(JSONObject.numberToString((Number)o));
+		} else if (o instanceof Boolean) {
+			append(((Boolean)o).booleanValue() ? "true" : "false");
+		} else if (o instanceof java.util.Map) {
+			writeMap((java.util.Map<Object, Object>)o);
+		} else if (o instanceof Map) {
+			writeMap(((Map)o).getObject());
+		} else if (o instanceof java.util.List) {
+			writeList((java.util.List<Object>)o);
+		} else if (o instanceof List) {
+			writeList(((List)o).getObject());
+		} else if (o.getClass().isArray()) {
+			writeArray(o);
+		} else {
+			writeString(o.toString());
+		}
+	}
+	private void writeMap(java.util.Map<Object, Object> map) throws JSONException, IOException {
+		append('{');
+		depth++;
+		boolean first = true;
+		for (Entry<Object, Object> e : map.entrySet()) {
+			if (!first)
+				append(',');
+			first = false;
+			newline();
+			writeString(String.valueOf(e.getKey()));
+			if (indent == null)
+				append(':');
+			else
+				append(": ");
+			writeValue(e.getValue());
+		}
+		depth--;
+		if (!first)
+			newline();
+		append('}');
+	}
+	private void writeList(java.util.List<Object> list) throws JSONException, IOException {
+		beginArray();
+		for (int i = 0;i < list.size();i++) {
+			beforeElement(i);
+			writeValue(list.get(i));
+		}
+		endArray(list.size());
+	}
+	private void beginArray() throws IOException {
+		append('[');
+		depth++;
+	}
+	private void beforeElement(int i) throws IOException {
+		if (i > 0)
+			append(',');
+		newline();
+	}
+	private void endArray(int size) throws IOException {
+		depth--;
+		if (size > 0)
+			newline();
+		append(']');
+	}
+	//primitive arrays are handled here to avoid boxing and reflection.
+	private void writeArray(Object o) throws JSONException, IOException {
+		int size;
+		beginArray();
+		if (o instanceof Object[]) {
+			Object[] a = (Object[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				writeValue(a[i]);
+			}
+		} else if (o instanceof int[]) {
+			int[] a = (int[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(Integer.toString(a[i]));
+			}
+		} else if (o instanceof long[]) {
+			long[] a = (long[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(Long.toString(a[i]));
+			}
+		} else if (o instanceof double[]) {
+			double[] a = (double[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(JSONObject.numberToString(a[i]));
+			}
+		} else if (o instanceof float[]) {
+			float[] a = (float[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(JSONObject.numberToString(a[i]));
+			}
+		} else if (o instanceof byte[]) {
+			byte[] a = (byte[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(Integer.toString(a[i]));
+			}
+		} else if (o instanceof short[]) {
+			short[] a = (short[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(Integer.toString(a[i]));
+			}
+		} else if (o instanceof boolean[]) {
+			boolean[] a = (boolean[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				append(a[i] ? "true" : "false");
+			}
+		} else {
+			char[] a = (char[])o;
+			size = a.length;
+			for (int i = 0;i < size;i++) {
+				beforeElement(i);
+				writeString(String.valueOf(a[i]));
+			}
+		}
+		endArray(size);
+	}
+	private void writeString(String value) throws IOException {
+		append('"');
+		for (int i = 0, length = value.length(); i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					append('\\');
+					append(c);
+					break;
+				case '\t':
+					append('\\');
+					append('t');
+					break;
+				case '\b':
+					append('\\');
+					append('b');
+					break;
+				case '\n':
+					append('\\');
+					append('n');
+					break;
+				case '\r':
+					append('\\');
+					append('r');
+					break;
+				case '\f':
+					append('\\');
+					append('f');
+					break;
+				default:
+					if (c <= 0x1F) {
+						append("\\u00");
+						append(HEX[c >> 4]);
+						append(HEX[c & 0xf]);
+					} else {
+						append(c);
+					}
+					break;
+			}
+		}
+		append('"');
+	}
+}
@@ -40,7 +40,7 @@ import com.mongodb.MongoClientURI;
  * A MongoDB client. Implemented as a connection pool. A single instance can be used by multiple handlers.
  *<link>MongoDB manual|https://docs.mongodb.com/manual/</link> 
  */
-@Version(1.0f)
+@Version(1.01f)
 @DependsOn(values={"mongo-java-driver-3.12.11"})
 @ShortName("MongoClient")
 public class MongoClientWrapper extends AbsObjectWrapper<MongoClient>{
@@ -19,25 +19,41 @@
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
 import anywheresoftware.b4a.AbsObjectWrapper;
+import anywheresoftware.b4a.BA;
+import anywheresoftware.b4a.BA.Events;
 import anywheresoftware.b4a.BA.ShortName;
 import anywheresoftware.b4a.objects.collections.List;
 import anywheresoftware.b4a.objects.collections.Map;
 import anywheresoftware.b4a.objects.collections.Map.MyMap;
 
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
 
 /**
  * Represents a single collection.
  */
 @ShortName("MongoCollection")
+@Events(values={"BulkWriteComplete (Success As Boolean, Result As MongoBulkWriteResult)"})
 public class MongoCollectionWrapper extends AbsObjectWrapper<MongoCollection<MyMap>>{
 	/**
 	 * Gets the number of documents in the collection.
@@ -77,6 +93,25 @@ public class MongoCollectionWrapper extends AbsObjectWrapper<MongoCollection<MyM
 	 *Limit - Maximum number of documents to return.
 	 */
 	public List Find2(Map Filter, List Projection, Map Sort, int Skip, int Limit) {
+		return MongoUtils.ListFromIterable(createFind(Filter, Projection, Sort, Skip, Limit));
+	}
+	/**
+	 * Similar to Find. Returns a cursor that fetches the documents from the server in batches, instead of loading all of them into memory.
+	 *BatchSize - Number of documents fetched in each round trip. Pass 0 to use the server default.
+	 *Example: <code>
+	 *Dim cursor As MongoCursor = Collection.FindCursor(CreateMap("status": "good"), Null, Null, 1000)
+	 *Do While cursor.HasNext
+	 *	Dim doc As Map = cursor.Next
+	 *Loop
+	 *cursor.Close</code>
+	 */
+	public MongoCursorWrapper FindCursor(Map Filter, List Projection, Map Sort, int BatchSize) {
+		FindIterable<MyMap> ff = createFind(Filter, Projection, Sort, 0, 0);
+		if (BatchSize > 0)
+			ff = ff.batchSize(BatchSize);
+		return (MongoCursorWrapper)AbsObjectWrapper.ConvertToWrapper(new MongoCursorWrapper(), ff.iterator());
+	}
+	private FindIterable<MyMap> createFind(Map Filter, List Projection, Map Sort, int Skip, int Limit) {
 		FindIterable<MyMap> ff = Filter.IsInitialized() ? getObject().find(MongoUtils.MapToBson((MyMap) Filter.getObject())) : getObject().find();
 		if (Projection.IsInitialized()) {
 			boolean idFound = false;
@@ -96,16 +131,29 @@ public class MongoCollectionWrapper extends AbsObjectWrapper<MongoCollection<MyM
 			ff = ff.skip(Skip);
 		if (Limit > 0)
 			ff = ff.limit(Limit);
-		return MongoUtils.ListFromIterable(ff);
+		return ff;
 	}
 	/**
 	 * Executes an aggregation pipeline. Each element in the list is a Map that defines a single step.
 	 */
 	public List Aggregate(List Pipeline) {
+		return MongoUtils.ListFromIterable(getObject().aggregate(pipelineToSteps(Pipeline)));
+	}
+	/**
+	 * Similar to Aggregate. Returns a cursor that fetches the results in batches.
+	 *BatchSize - Number of documents fetched in each round trip. Pass 0 to use the server default.
+	 */
+	public MongoCursorWrapper AggregateCursor(List Pipeline, int BatchSize) {
+		AggregateIterable<MyMap> it = getObject().aggregate(pipelineToSteps(Pipeline));
+		if (BatchSize > 0)
+			it = it.batchSize(BatchSize);
+		return (MongoCursorWrapper)AbsObjectWrapper.ConvertToWrapper(new MongoCursorWrapper(), it.iterator());
+	}
+	private static ArrayList<Bson> pipelineToSteps(List Pipeline) {
 		ArrayList<Bson> steps = new ArrayList<Bson>();
 		for (Object o : Pipeline.getObject())
 			steps.add(MongoUtils.MapToBson((MyMap)o));
-		return MongoUtils.ListFromIterable(getObject().aggregate(steps));
+		return steps;
 	}
 	/**
 	 * Inserts one or more documents.
@@ -115,6 +163,50 @@ public class MongoCollectionWrapper extends AbsObjectWrapper<MongoCollection<MyM
 	public void Insert(List Documents) {
 		getObject().insertMany((java.util.List)Documents.getObject());
 	}
+	/**
+	 * Similar to Insert.
+	 *Ordered - If False then the server can insert the documents in any order and it will continue after errors. Unordered inserts are usually faster.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void Insert2(List Documents, boolean Ordered) {
+		getObject().insertMany((java.util.List)Documents.getObject(), new InsertManyOptions().ordered(Ordered));
+	}
+	/**
+	 * Executes the operations that were added to the MongoBulkWrite object in a single request.
+	 *Ordered - If False then the server can execute the operations in any order and it will continue after errors.
+	 *Example: <code>
+	 *Dim bulk As MongoBulkWrite
+	 *bulk.Initialize
+	 *bulk.Insert(CreateMap("key1": 100))
+	 *bulk.Update(CreateMap("key1": 50), CreateMap("$set": CreateMap("key2": 3)), False)
+	 *bulk.Delete(CreateMap("key1": 10))
+	 *Dim res As MongoBulkWriteResult = Collection.BulkWrite(bulk, False)
+	 *Log(res.InsertedCount)</code>
+	 */
+	public BulkWriteResultWrapper BulkWrite(MongoBulkWrite Bulk, boolean Ordered) {
+		return (BulkWriteResultWrapper)AbsObjectWrapper.ConvertToWrapper(new BulkWriteResultWrapper(),
+				getObject().bulkWrite(Bulk.operations, new BulkWriteOptions().ordered(Ordered)));
+	}
+	/**
+	 * Asynchronously executes the bulk operations. The BulkWriteComplete event will be raised when the operations complete.
+	 *Returns an object that can be used as the sender filter for Wait For calls.
+	 *Example: <code>
+	 *Dim SenderFilter As Object = Collection.BulkWriteAsync("Collection", bulk, False)
+	 *Wait For (SenderFilter) Collection_BulkWriteComplete (Success As Boolean, Result As MongoBulkWriteResult)
+	 *If Success Then Log(Result.InsertedCount) Else Log(LastException)</code>
+	 */
+	public Object BulkWriteAsync(BA ba, String EventName, final MongoBulkWrite Bulk, final boolean Ordered) {
+		final Object sender = new Object();
+		BA.runAsync(ba, sender, EventName + "_bulkwritecomplete", new Object[] {false, AbsObjectWrapper.ConvertToWrapper(new BulkWriteResultWrapper(), null)},
+				new Callable<Object[]>() {
+
+			@Override
+			public Object[] call() throws Exception {
+				return new Object[] {true, BulkWrite(Bulk, Ordered)};
+			}
+		});
+		return sender;
+	}
 	/**
 	 * Updates matching documents.
 	 *Filter - The filter map.
@@ -147,6 +239,86 @@ public class MongoCollectionWrapper extends AbsObjectWrapper<MongoCollection<MyM
 	}
 
 
+	/**
+	 * Holds a list of insert, update, replace and delete operations that are executed together with MongoCollection.BulkWrite.
+	 */
+	@ShortName("MongoBulkWrite")
+	public static class MongoBulkWrite {
+		ArrayList<WriteModel<MyMap>> operations;
+		/**
+		 * Initializes the object.
+		 */
+		public void Initialize() {
+			operations = new ArrayList<WriteModel<MyMap>>();
+		}
+		public boolean IsInitialized() {
+			return operations != null;
+		}
+		/**
+		 * Returns the number of operations.
+		 */
+		public int getSize() {
+			return operations.size();
+		}
+		/**
+		 * Adds an insert operation.
+		 */
+		public void Insert(Map Document) {
+			operations.add(new InsertOneModel<MyMap>((MyMap)Document.getObject()));
+		}
+		/**
+		 * Adds an operation that updates all the matching documents.
+		 */
+		public void Update(Map Filter, Map Update, boolean Upsert) {
+			operations.add(new UpdateManyModel<MyMap>(MongoUtils.MapToBson((MyMap) Filter.getObject()),
+					MongoUtils.MapToBson((MyMap) Update.getObject()), new UpdateOptions().upsert(Upsert)));
+		}
+		/**
+		 * Adds an operation that updates the first matching document.
+		 */
+		public void UpdateOne(Map Filter, Map Update, boolean Upsert) {
+			operations.add(new UpdateOneModel<MyMap>(MongoUtils.MapToBson((MyMap) Filter.getObject()),
+					MongoUtils.MapToBson((MyMap) Update.getObject()), new UpdateOptions().upsert(Upsert)));
+		}
+		/**
+		 * Adds an operation that replaces the first matching document.
+		 */
+		public void Replace(Map Filter, Map Document, boolean Upsert) {
+			operations.add(new ReplaceOneModel<MyMap>(MongoUtils.MapToBson((MyMap) Filter.getObject()),
+					(MyMap) Document.getObject(), new ReplaceOptions().upsert(Upsert)));
+		}
+		/**
+		 * Adds an operation that deletes all the matching documents.
+		 */
+		public void Delete(Map Filter) {
+			operations.add(new DeleteManyModel<MyMap>(MongoUtils.MapToBson((MyMap) Filter.getObject())));
+		}
+		/**
+		 * Adds an operation that deletes the first matching document.
+		 */
+		public void DeleteOne(Map Filter) {
+			operations.add(new DeleteOneModel<MyMap>(MongoUtils.MapToBson((MyMap) Filter.getObject())));
+		}
+	}
+	@ShortName("MongoBulkWriteResult")
+	public static class BulkWriteResultWrapper extends AbsObjectWrapper<BulkWriteResult> {
+		public int getInsertedCount() {
+			return getObject().getInsertedCount();
+		}
+		public int getMatchedCount() {
+			return getObject().getMatchedCount();
+		}
+		public int getModifiedCount() {
+			return getObject().getModifiedCount();
+		}
+		public int getDeletedCount() {
+			return getObject().getDeletedCount();
+		}
+		public int getUpsertedCount() {
+			return getObject().getUpserts().size();
+		}
+	}
+
 	@ShortName("UpdateResult")
 	public static class UpdateResultWrapper extends AbsObjectWrapper<UpdateResult> {
 		public long getMatchedCount() {
@@ -0,0 +1,156 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package anywheresoftware.mongo;
+
+import java.util.concurrent.Semaphore;
+
+import anywheresoftware.b4a.AbsObjectWrapper;
+import anywheresoftware.b4a.BA;
+import anywheresoftware.b4a.BA.Events;
+import anywheresoftware.b4a.BA.ShortName;
+import anywheresoftware.b4a.objects.collections.List;
+import anywheresoftware.b4a.objects.collections.Map;
+import anywheresoftware.b4a.objects.collections.Map.MyMap;
+
+import com.mongodb.client.MongoCursor;
+
+/**
+ * A cursor that goes over the results of a query without loading all the documents into memory.
+ *The documents are fetched from the server in batches. Make sure to close the cursor when it is no longer needed.
+ *Created with MongoCollection.FindCursor or MongoCollection.AggregateCursor.
+ */
+@ShortName("MongoCursor")
+@Events(values={"Chunk (Success As Boolean, Documents As List, Completed As Boolean)"})
+public class MongoCursorWrapper extends AbsObjectWrapper<MongoCursor<MyMap>>{
+	/**
+	 * Returns true if there are more documents.
+	 */
+	public boolean HasNext() {
+		return getObject().hasNext();
+	}
+	/**
+	 * Returns the next document.
+	 */
+	public Map Next() {
+		return (Map)AbsObjectWrapper.ConvertToWrapper(new Map(), getObject().next());
+	}
+	/**
+	 * Reads the next documents and adds them to the given list. The list is cleared before the documents are added and it will be initialized if needed.
+	 *Returns the number of documents read. It will be lower than MaxDocuments when there are no more documents.
+	 *Example:<code>
+	 *Dim cursor As MongoCursor = Collection.FindCursor(CreateMap("status": "good"), Null, Null, 1000)
+	 *Dim docs As List
+	 *Do While cursor.ReadChunk(docs, 1000) > 0
+	 *	For Each doc As Map In docs
+	 *		Log(doc)
+	 *	Next
+	 *Loop
+	 *cursor.Close</code>
+	 */
+	public int ReadChunk(List Documents, int MaxDocuments) {
+		if (Documents.IsInitialized() == false)
+			Documents.Initialize();
+		else
+			Documents.Clear();
+		MongoCursor<MyMap> cursor = getObject();
+		java.util.List<Object> list = Documents.getObject();
+		int count = 0;
+		while (count < MaxDocuments && cursor.hasNext()) {
+			list.add(cursor.next());
+			count++;
+		}
+		return count;
+	}
+	/**
+	 * Reads the documents in a background thread and raises the Chunk event for each chunk of documents.
+	 *The next chunk is only raised after the previous event was handled, so the memory usage is bounded.
+	 *Note that the Documents list is reused. Don't keep a reference to the list itself (the documents can be kept).
+	 *The cursor is closed automatically after the last chunk or if an error occurs.
+	 *Returns an object that can be used as the sender filter for Wait For calls.
+	 *Example:<code>
+	 *Dim cursor As MongoCursor = Collection.FindCursor(Null, Null, Null, 1000)
+	 *Dim SenderFilter As Object = cursor.ReadChunksAsync("cursor", 1000)
+	 *Do While True
+	 *	Wait For (SenderFilter) Cursor_Chunk (Success As Boolean, Documents As List, Completed As Boolean)
+	 *	If Success = False Then
+	 *		Log(LastException)
+	 *		Exit
+	 *	End If
+	 *	For Each doc As Map In Documents
+	 *		Log(doc)
+	 *	Next
+	 *	If Completed Then Exit
+	 *Loop</code>
+	 */
+	public Object ReadChunksAsync(final BA ba, String EventName, final int ChunkSize) {
+		final String eventName = EventName.toLowerCase(BA.cul) + "_chunk";
+		final MongoCursor<MyMap> cursor = getObject();
+		BA.submitRunnable(new Runnable() {
+
+			@Override
+			public void run() {
+				final Semaphore eventHandled = new Semaphore(1);
+				MongoCursorWrapper reader = new MongoCursorWrapper();
+				reader.setObject(cursor);
+				//two lists are used alternately. One is filled while the other is handled.
+				List[] buffers = new List[] {new List(), new List()};
+				int current = 0;
+				try {
+					while (true) {
+						List docs = buffers[current];
+						current = 1 - current;
+						int count = reader.ReadChunk(docs, ChunkSize);
+						boolean completed = count < ChunkSize;
+						eventHandled.acquire();
+						raiseChunkEvent(ba, cursor, eventName, eventHandled, new Object[] {true, docs, completed});
+						if (completed)
+							break;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					ba.setLastException(e);
+					List empty = new List();
+					empty.Initialize();
+					raiseChunkEvent(ba, cursor, eventName, null, new Object[] {false, empty, true});
+				} finally {
+					cursor.close();
+				}
+			}
+		}, null, 0);
+		return cursor;
+	}
+	private static void raiseChunkEvent(final BA ba, final Object sender, final String eventName, final Semaphore eventHandled, final Object[] params) {
+		ba.postRunnable(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ba.raiseEvent2(sender, false, eventName, false, params);
+				} finally {
+					if (eventHandled != null)
+						eventHandled.release();
+				}
+			}
+		});
+	}
+	/**
+	 * Closes the cursor.
+	 */
+	public void Close() {
+		getObject().close();
+	}
+}
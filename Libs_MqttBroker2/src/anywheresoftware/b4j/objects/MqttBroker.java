@@ -21,11 +21,31 @@ import io.moquette.broker.AutoFlushHandler;
 import io.moquette.broker.Server;
 import io.moquette.broker.config.IConfig;
 import io.moquette.broker.config.MemoryConfig;
+import io.moquette.broker.metrics.BytesMetrics;
+import io.moquette.broker.metrics.LatencyHistogram;
+import io.moquette.broker.metrics.MessageMetrics;
+import io.moquette.broker.metrics.SessionsMetrics;
 import io.moquette.broker.security.IAuthenticator;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.InterceptHandler;
+import io.moquette.interception.messages.InterceptConnectMessage;
+import io.moquette.interception.messages.InterceptConnectionLostMessage;
+import io.moquette.interception.messages.InterceptDisconnectMessage;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.ByteBufUtil;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Level;
@@ -35,24 +55,46 @@ import org.apache.log4j.spi.LoggingEvent;
 
 import anywheresoftware.b4a.BA;
 import anywheresoftware.b4a.BA.DependsOn;
+import anywheresoftware.b4a.BA.Events;
 import anywheresoftware.b4a.BA.Hide;
 import anywheresoftware.b4a.BA.ShortName;
 import anywheresoftware.b4a.BA.Version;
 import anywheresoftware.b4a.keywords.Common;
+import anywheresoftware.b4a.objects.collections.List;
+import anywheresoftware.b4a.objects.collections.Map;
+import anywheresoftware.b4a.objects.collections.Map.MyMap;
 //Changes in NewNettyAcceptor
-@Version(2.02f)
+@Version(2.30f)
 @DependsOn(values={"moquette2"})
 @ShortName("MqttBroker")
+@Events(values={"Connected (Clients As List)", "Disconnected (Clients As List)", "Published (Messages As List)"})
 public class MqttBroker {
+	/**
+	 * Flush strategies (see SetFlushStrategy).
+	 */
+	public static final String FLUSH_IMMEDIATE = "immediate", FLUSH_TIMED = "timed", FLUSH_CONSOLIDATED = "consolidated";
 	@Hide
 	public Server server;
 	@Hide
 	public IConfig config;
 	private boolean logEnabled;
+	private BA ba;
+	private String eventName;
+	private int eventsInterval, maxPendingEvents;
+	private EventsHandler eventsHandler;
+	private ScheduledThreadPoolExecutor eventsTimer;
+	private final AtomicLong droppedEvents = new AtomicLong();
+	//values of the previous GetMetrics call
+	private long lastMetricsTime;
+	private long lastMessagesIn, lastMessagesOut, lastBytesIn, lastBytesOut;
+	private LatencyHistogram.Snapshot lastLatency;
 	/**
-	 * Initializes the broker and sets the broker port (currently there are no events).
+	 * Initializes the broker and sets the broker port.
+	 *EventName - Sets the subs that will handle the events. The events are only raised after EnableEvents is called.
 	 */
-	public void Initialize(String EventName, int Port) {
+	public void Initialize(BA ba, String EventName, int Port) {
+		this.ba = ba;
+		this.eventName = EventName.toLowerCase(BA.cul);
 		server = new Server();
 		config = new MemoryConfig(new Properties());
 		config.setProperty(BrokerConstants.PORT_PROPERTY_NAME, Integer.toString(Port)); 
@@ -96,6 +138,79 @@ public class MqttBroker {
 		config.setProperty(BrokerConstants.AUTHENTICATOR_CLASS_NAME, B4XAuthenticator.class.getName());
 		
 	}
+	/**
+	 * Enables persistence of the subscriptions and of the queued messages of persistent sessions (clients that connect with CleanSession = False).
+	 *Messages sent to offline clients will be delivered after the broker is restarted.
+	 *Should be called before Start.
+	 *Dir - Folder that holds the store files.
+	 *SyncInterval - Interval (measured in milliseconds) for forcing the pending writes to the disk. Writes from the last interval can be lost if the machine crashes.
+	 *Pass 0 to wait for the disk before each write completes (slower).
+	 *Example:<code>
+	 *broker.EnablePersistence(File.Combine(File.DirApp, "broker_store"), 100)</code>
+	 */
+	public void EnablePersistence(String Dir, int SyncInterval) {
+		config.setProperty(BrokerConstants.MMAP_STORE_PATH_PROPERTY_NAME, Dir);
+		config.setProperty(BrokerConstants.MMAP_STORE_SYNC_INTERVAL_PROPERTY_NAME, String.valueOf(SyncInterval));
+	}
+	/**
+	 * Sets the number of threads that handle the connections. The default value (0) is twice the number of cores.
+	 *Should be set before Start.
+	 */
+	public void setWorkerThreads(int i) {
+		config.setProperty(BrokerConstants.NETTY_WORKER_THREADS_PROPERTY_NAME, String.valueOf(i));
+	}
+	/**
+	 * Sets how the outgoing messages are flushed to the network. Should be set before Start.
+	 *FLUSH_TIMED - The messages are flushed every Value milliseconds. Lower CPU usage with many small messages. This is the default strategy with Value = 50.
+	 *FLUSH_IMMEDIATE - Each message is flushed immediately (lowest latency). Value is ignored.
+	 *FLUSH_CONSOLIDATED - The flushes are done after the incoming messages are processed, or after Value flushes (good throughput and low latency).
+	 */
+	public void SetFlushStrategy(String Strategy, int Value) {
+		config.setProperty(BrokerConstants.NETTY_FLUSH_STRATEGY_PROPERTY_NAME, Strategy);
+		if (Strategy.equals(FLUSH_TIMED))
+			config.setProperty(BrokerConstants.NETTY_FLUSH_INTERVAL_MS_PROPERTY_NAME, String.valueOf(Value));
+		else if (Strategy.equals(FLUSH_CONSOLIDATED))
+			config.setProperty(BrokerConstants.NETTY_FLUSH_CONSOLIDATION_PROPERTY_NAME, String.valueOf(Value));
+		else if (Strategy.equals(FLUSH_IMMEDIATE) == false)
+			throw new IllegalArgumentException("Invalid flush strategy: " + Strategy);
+	}
+	/**
+	 * Sets the maximum number of QoS 1 and 2 messages that are sent to each client and are not yet acknowledged.
+	 *Additional messages are queued. Default value is 10. Should be set before Start.
+	 */
+	public void setInflightWindow(int i) {
+		config.setProperty(BrokerConstants.SESSION_INFLIGHT_WINDOW_PROPERTY_NAME, String.valueOf(i));
+	}
+	/**
+	 * Sets the maximum size of incoming messages (in bytes). Default value is 8092. Should be set before Start.
+	 */
+	public void setMaxMessageSize(int i) {
+		config.setProperty(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME, String.valueOf(i));
+	}
+	/**
+	 * Sets the limits of each connection write buffer (in bytes).
+	 *When a slow subscriber has more than High bytes pending, the QoS 1 and 2 messages are kept in its session queue and QoS 0 messages are dropped.
+	 *The queued messages are sent once the pending bytes go below Low.
+	 *Default values are 32768 and 65536. Should be set before Start.
+	 */
+	public void SetWriteBufferWaterMarks(int Low, int High) {
+		config.setProperty(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME, String.valueOf(Low));
+		config.setProperty(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME, String.valueOf(High));
+	}
+	/**
+	 * Uses the Linux native epoll transport instead of NIO. Requires the netty-transport-native-epoll library.
+	 *Should be set before Start.
+	 */
+	public void setUseEpoll(boolean b) {
+		config.setProperty(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, String.valueOf(b));
+	}
+	/**
+	 * Sets whether the network buffers are allocated from a pool. Pooled buffers reduce the garbage collection work.
+	 *By default Netty uses pooled buffers. Should be set before Start.
+	 */
+	public void setPooledBuffers(boolean b) {
+		config.setProperty(BrokerConstants.NETTY_POOLED_ALLOCATOR_PROPERTY_NAME, String.valueOf(b));
+	}
 	@Hide
 	public static class B4XAuthenticator implements IAuthenticator
 	{
@@ -120,17 +235,226 @@ public class MqttBroker {
 	public void setDebugLog(boolean b) {
 		logEnabled = b;
 	}
+	/**
+	 * Enables the Connected, Disconnected and Published events.
+	 *The events are collected and raised together every Interval milliseconds with a list of maps, so a busy broker doesn't flood the message queue.
+	 *Only events with an existing sub are collected.
+	 *MaxPending - Maximum number of items that are held for each event between two batches. Additional items are dropped (see DroppedEvents in GetMetrics).
+	 *Should be called before Start.
+	 *Connected maps keys: ClientId, Username, CleanSession.
+	 *Disconnected maps keys: ClientId, Username, ConnectionLost (True if the client didn't send a DISCONNECT message).
+	 *Published maps keys: ClientId, Username, Topic, QoS, Retained, Payload.
+	 *Example:<code>
+	 *broker.EnableEvents(500, 10000)
+	 *
+	 *Sub Broker_Connected (Clients As List)
+	 *	For Each client As Map In Clients
+	 *		Log("Connected: " & client.Get("ClientId"))
+	 *	Next
+	 *End Sub</code>
+	 */
+	public void EnableEvents(int Interval, int MaxPending) {
+		eventsInterval = Math.max(1, Interval);
+		maxPendingEvents = Math.max(1, MaxPending);
+	}
 	/**
 	 * Starts the server.
 	 */
 	public void Start() throws IOException {
-		server.startServer(config);
+		java.util.List<InterceptHandler> handlers = Collections.emptyList();
+		if (eventsInterval > 0) {
+			eventsHandler = new EventsHandler();
+			handlers = Collections.<InterceptHandler>singletonList(eventsHandler);
+			eventsTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = defaultFactory.newThread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			eventsTimer.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					eventsHandler.flush();
+				}
+			}, eventsInterval, eventsInterval, TimeUnit.MILLISECONDS);
+		}
+		server.startServer(config, handlers);
+		lastMetricsTime = System.nanoTime();
+		lastMessagesIn = lastMessagesOut = lastBytesIn = lastBytesOut = 0;
+		lastLatency = server.getPublishLatency().snapshot();
 	}
 	/**
 	 * Stops the server.
 	 */
 	public void Stop() {
 		server.stopServer();
+		if (eventsTimer != null) {
+			eventsTimer.shutdownNow();
+			eventsTimer = null;
+			eventsHandler.flush();
+		}
+	}
+	/**
+	 * Returns a Map with the current state of the broker. The per second rates and the publish latency values are calculated over the period since the previous call (or since the broker was started).
+	 *Keys:
+	 *Connections - Number of connected clients.
+	 *Sessions - Number of sessions, including the disconnected persistent sessions.
+	 *MessagesIn / MessagesOut - Total number of MQTT messages read and written (including acks and pings).
+	 *MessagesInPerSecond / MessagesOutPerSecond - Messages read and written per second.
+	 *BytesIn / BytesOut - Total number of bytes read and written.
+	 *BytesInPerSecond / BytesOutPerSecond - Bytes read and written per second.
+	 *QueuedMessages - Number of messages waiting in the sessions queues.
+	 *MaxQueueDepth - Size of the largest session queue.
+	 *InflightMessages - Number of messages that were sent and were not yet acknowledged.
+	 *Publishes - Number of publishes routed.
+	 *PublishLatencyMean, PublishLatencyP50, PublishLatencyP90, PublishLatencyP99 - Time (measured in milliseconds) taken to route a publish to the subscribers sessions.
+	 *The percentiles are the upper bounds of power of two histogram buckets.
+	 *PublishLatencyHistogram - Map with the buckets upper bound (measured in microseconds) as keys and the number of publishes as values. Empty buckets are not included.
+	 *DroppedEvents - Number of events dropped because the events queue was full.
+	 */
+	public synchronized Map GetMetrics() {
+		MessageMetrics messages = server.getMessageMetrics();
+		BytesMetrics bytes = server.getBytesMetrics();
+		SessionsMetrics sessions = server.getSessionsMetrics();
+		LatencyHistogram.Snapshot latency = server.getPublishLatency().snapshot();
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - lastMetricsTime) / 1e9;
+		Map m = new Map();
+		m.Initialize();
+		m.Put("Connections", sessions.connectedSessions());
+		m.Put("Sessions", sessions.sessions());
+		m.Put("MessagesIn", messages.messagesRead());
+		m.Put("MessagesOut", messages.messagesWrote());
+		m.Put("MessagesInPerSecond", (messages.messagesRead() - lastMessagesIn) / seconds);
+		m.Put("MessagesOutPerSecond", (messages.messagesWrote() - lastMessagesOut) / seconds);
+		m.Put("BytesIn", bytes.readBytes());
+		m.Put("BytesOut", bytes.wroteBytes());
+		m.Put("BytesInPerSecond", (bytes.readBytes() - lastBytesIn) / seconds);
+		m.Put("BytesOutPerSecond", (bytes.wroteBytes() - lastBytesOut) / seconds);
+		m.Put("QueuedMessages", sessions.queuedMessages());
+		m.Put("MaxQueueDepth", sessions.maxQueueDepth());
+		m.Put("InflightMessages", sessions.inflightMessages());
+		LatencyHistogram.Snapshot period = latency.minus(lastLatency);
+		m.Put("Publishes", period.count());
+		m.Put("PublishLatencyMean", period.meanMicros() / 1000);
+		m.Put("PublishLatencyP50", period.percentileMicros(50) / 1000.0);
+		m.Put("PublishLatencyP90", period.percentileMicros(90) / 1000.0);
+		m.Put("PublishLatencyP99", period.percentileMicros(99) / 1000.0);
+		MyMap histogram = new MyMap();
+		for (int i = 0;i < LatencyHistogram.BUCKETS;i++) {
+			if (period.bucketCount(i) > 0)
+				histogram.put(LatencyHistogram.Snapshot.bucketUpperBoundMicros(i), period.bucketCount(i));
+		}
+		m.Put("PublishLatencyHistogram", histogram);
+		m.Put("DroppedEvents", droppedEvents.get());
+		lastMetricsTime = now;
+		lastMessagesIn = messages.messagesRead();
+		lastMessagesOut = messages.messagesWrote();
+		lastBytesIn = bytes.readBytes();
+		lastBytesOut = bytes.wroteBytes();
+		lastLatency = latency;
+		return m;
+	}
+	private class EventsHandler extends AbstractInterceptHandler {
+		private final EventBatch connected = new EventBatch("_connected");
+		private final EventBatch disconnected = new EventBatch("_disconnected");
+		private final EventBatch published = new EventBatch("_published");
+		@Override
+		public String getID() {
+			return "b4x_events";
+		}
+		@Override
+		public Class<?>[] getInterceptedMessageTypes() {
+			ArrayList<Class<?>> types = new ArrayList<Class<?>>();
+			if (connected.enabled)
+				types.add(InterceptConnectMessage.class);
+			if (disconnected.enabled) {
+				types.add(InterceptDisconnectMessage.class);
+				types.add(InterceptConnectionLostMessage.class);
+			}
+			if (published.enabled)
+				types.add(InterceptPublishMessage.class);
+			return types.toArray(new Class<?>[0]);
+		}
+		@Override
+		public void onConnect(InterceptConnectMessage msg) {
+			MyMap m = new MyMap();
+			m.put("ClientId", msg.getClientID());
+			m.put("Username", msg.isUserFlag() ? msg.getUsername() : "");
+			m.put("CleanSession", msg.isCleanSession());
+			connected.add(m);
+		}
+		@Override
+		public void onDisconnect(InterceptDisconnectMessage msg) {
+			disconnected.add(disconnectMap(msg.getClientID(), msg.getUsername(), false));
+		}
+		@Override
+		public void onConnectionLost(InterceptConnectionLostMessage msg) {
+			disconnected.add(disconnectMap(msg.getClientID(), msg.getUsername(), true));
+		}
+		private MyMap disconnectMap(String clientId, String username, boolean lost) {
+			MyMap m = new MyMap();
+			m.put("ClientId", clientId);
+			m.put("Username", username == null ? "" : username);
+			m.put("ConnectionLost", lost);
+			return m;
+		}
+		@Override
+		public void onPublish(InterceptPublishMessage msg) {
+			if (published.reserve() == false)
+				return;
+			MyMap m = new MyMap();
+			m.put("ClientId", msg.getClientID());
+			m.put("Username", msg.getUsername() == null ? "" : msg.getUsername());
+			m.put("Topic", msg.getTopicName());
+			m.put("QoS", msg.getQos().value());
+			m.put("Retained", msg.isRetainFlag());
+			m.put("Payload", ByteBufUtil.getBytes(msg.getPayload()));
+			published.items.add(m);
+		}
+		void flush() {
+			connected.flush();
+			disconnected.flush();
+			published.flush();
+		}
+	}
+	private class EventBatch {
+		final String event;
+		final boolean enabled;
+		final ConcurrentLinkedQueue<Object> items = new ConcurrentLinkedQueue<Object>();
+		final AtomicInteger size = new AtomicInteger();
+		EventBatch(String suffix) {
+			event = eventName + suffix;
+			enabled = ba.subExists(event);
+		}
+		boolean reserve() {
+			if (size.incrementAndGet() > maxPendingEvents) {
+				size.decrementAndGet();
+				droppedEvents.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		void add(MyMap m) {
+			if (reserve())
+				items.add(m);
+		}
+		void flush() {
+			if (items.isEmpty())
+				return;
+			ArrayList<Object> batch = new ArrayList<Object>();
+			Object o;
+			while ((o = items.poll()) != null) {
+				batch.add(o);
+				size.decrementAndGet();
+			}
+			List list = new List();
+			list.setObject(batch);
+			ba.raiseEventFromDifferentThread(MqttBroker.this, null, 0, event, false, new Object[] {list});
+		}
 	}
-	
 }
@@ -68,6 +68,20 @@ public final class BrokerConstants {
     public static final String NETTY_EPOLL_PROPERTY_NAME = "netty.epoll";
     public static final String NETTY_MAX_BYTES_PROPERTY_NAME = "netty.mqtt.message_size";
     public static final int DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE = 8092;
+    public static final String NETTY_WORKER_THREADS_PROPERTY_NAME = "netty.worker_threads";
+    public static final String NETTY_POOLED_ALLOCATOR_PROPERTY_NAME = "netty.pooled_allocator";
+    public static final String NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME = "netty.write_buffer.low_water_mark";
+    public static final String NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME = "netty.write_buffer.high_water_mark";
+    public static final String NETTY_FLUSH_STRATEGY_PROPERTY_NAME = "netty.flush_strategy";
+    public static final String FLUSH_STRATEGY_IMMEDIATE = "immediate";
+    public static final String FLUSH_STRATEGY_TIMED = "timed";
+    public static final String FLUSH_STRATEGY_CONSOLIDATED = "consolidated";
+    public static final String NETTY_FLUSH_INTERVAL_MS_PROPERTY_NAME = "netty.flush_interval_ms";
+    public static final int DEFAULT_NETTY_FLUSH_INTERVAL_MS = 50;
+    public static final String NETTY_FLUSH_CONSOLIDATION_PROPERTY_NAME = "netty.flush_consolidation";
+    public static final int DEFAULT_NETTY_FLUSH_CONSOLIDATION = 256;
+    public static final String SESSION_INFLIGHT_WINDOW_PROPERTY_NAME = "session.inflight_window";
+    public static final int DEFAULT_SESSION_INFLIGHT_WINDOW = 10;
     public static final String METRICS_ENABLE_PROPERTY_NAME = "use_metrics";
     public static final String METRICS_LIBRATO_EMAIL_PROPERTY_NAME = "metrics.librato.email";
     public static final String METRICS_LIBRATO_TOKEN_PROPERTY_NAME = "metrics.librato.token";
@@ -77,6 +91,11 @@ public final class BrokerConstants {
     public static final String BUGSNAG_TOKEN_PROPERTY_NAME = "bugsnag.token";
 
     public static final String STORAGE_CLASS_NAME = "storage_class";
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE_PROPERTY_NAME = "subscriptions.match_cache_size";
+    public static final String RETAINED_OFF_HEAP_PROPERTY_NAME = "retained.off_heap";
+    public static final String MMAP_STORE_PATH_PROPERTY_NAME = "mmap_store_path";
+    public static final String MMAP_STORE_SEGMENT_SIZE_PROPERTY_NAME = "mmap_store.segment_size";
+    public static final String MMAP_STORE_SYNC_INTERVAL_PROPERTY_NAME = "mmap_store.sync_interval_ms";
 
     private BrokerConstants() {
     }
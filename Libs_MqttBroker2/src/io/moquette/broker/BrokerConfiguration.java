@@ -23,11 +23,17 @@ class BrokerConfiguration {
     private final boolean allowAnonymous;
     private final boolean allowZeroByteClientId;
     private final boolean reauthorizeSubscriptionsOnConnect;
+    // when false the messages are flushed by the AutoFlushHandler
+    private final boolean flushOnWrite;
 
     BrokerConfiguration(IConfig props) {
         allowAnonymous = props.boolProp(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, true);
         allowZeroByteClientId = props.boolProp(BrokerConstants.ALLOW_ZERO_BYTE_CLIENT_ID_PROPERTY_NAME, false);
         reauthorizeSubscriptionsOnConnect = props.boolProp(BrokerConstants.REAUTHORIZE_SUBSCRIPTIONS_ON_CONNECT, false);
+        final String flushStrategy = props.getProperty(BrokerConstants.NETTY_FLUSH_STRATEGY_PROPERTY_NAME,
+                                                       BrokerConstants.FLUSH_STRATEGY_TIMED);
+        flushOnWrite = BrokerConstants.FLUSH_STRATEGY_IMMEDIATE.equals(flushStrategy) ||
+            BrokerConstants.FLUSH_STRATEGY_CONSOLIDATED.equals(flushStrategy);
     }
 
     public BrokerConfiguration(boolean allowAnonymous, boolean allowZeroByteClientId,
@@ -35,6 +41,7 @@ class BrokerConfiguration {
         this.allowAnonymous = allowAnonymous;
         this.allowZeroByteClientId = allowZeroByteClientId;
         this.reauthorizeSubscriptionsOnConnect = reauthorizeSubscriptionsOnConnect;
+        this.flushOnWrite = false;
     }
 
     public boolean isAllowAnonymous() {
@@ -48,4 +55,8 @@ class BrokerConfiguration {
     public boolean isReauthorizeSubscriptionsOnConnect() {
         return reauthorizeSubscriptionsOnConnect;
     }
+
+    public boolean isFlushOnWrite() {
+        return flushOnWrite;
+    }
 }
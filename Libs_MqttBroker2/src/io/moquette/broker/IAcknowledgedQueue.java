@@ -0,0 +1,31 @@
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.broker;
+
+/**
+ * Session queue that keeps the messages that were taken from it until the client acknowledges them. The messages
+ * that are in flight when the broker stops are restored together with the queued messages.
+ * <p>
+ * Every QoS 1 and 2 message of a session with such a queue passes through the queue.
+ */
+public interface IAcknowledgedQueue {
+
+    /**
+     * Called when the client acknowledged a message that was taken from the queue (PUBACK, PUBREC or PUBCOMP).
+     */
+    void acknowledged(SessionRegistry.EnqueuedMessage msg);
+}
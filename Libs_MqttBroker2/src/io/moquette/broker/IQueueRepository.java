@@ -17,9 +17,24 @@
  
  package io.moquette.broker;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Queue;
 
 public interface IQueueRepository {
 
     Queue<SessionRegistry.EnqueuedMessage> createQueue(String cli, boolean clean);
+
+    /**
+     * Called when a client reconnects with a clean session and its stored queue is discarded.
+     */
+    default void dropQueue(String cli) {
+    }
+
+    /**
+     * @return the queues of the persistent sessions that were restored when the repository was opened.
+     */
+    default Map<String, Queue<SessionRegistry.EnqueuedMessage>> listPersistedQueues() {
+        return Collections.emptyMap();
+    }
 }
@@ -392,7 +392,11 @@ final class MQTTConnection {
             LOG.debug("OUT {} on channel {}", msg.fixedHeader().messageType(), channel);
         }
         if (channel.isWritable()) {
-            channel.write(msg).addListener(FIRE_EXCEPTION_ON_FAILURE);
+            if (brokerConfig.isFlushOnWrite()) {
+                channel.writeAndFlush(msg).addListener(FIRE_EXCEPTION_ON_FAILURE);
+            } else {
+                channel.write(msg).addListener(FIRE_EXCEPTION_ON_FAILURE);
+            }
         }
     }
 
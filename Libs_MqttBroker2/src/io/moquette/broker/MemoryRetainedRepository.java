@@ -15,52 +15,170 @@
  */
 package io.moquette.broker;
 
+import io.moquette.broker.subscriptions.Token;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /*
-* In memory retained messages store
+* In memory retained messages store.
+* The messages are indexed by a topic tree, so a subscription only visits the branches that can match its filter.
+* With offHeap set, the payloads are kept in pooled direct buffers instead of the Java heap, and the messages
+* returned by retainedOnTopic hold their own reference to the payload and should be released by the caller.
 * */
 final class MemoryRetainedRepository implements IRetainedRepository {
 
-    private final ConcurrentMap<Topic, RetainedMessage> storage = new ConcurrentHashMap<>();
+    private static final class Node {
+        final Node parent;
+        final String name;
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile RetainedMessage message;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    private final Node root = new Node(null, null);
+    private final boolean offHeap;
+    // guarded by this
+    private int size;
+
+    MemoryRetainedRepository() {
+        this(false);
+    }
+
+    MemoryRetainedRepository(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
 
     @Override
-    public void cleanRetained(Topic topic) {
-        storage.remove(topic);
+    public synchronized void cleanRetained(Topic topic) {
+        Node node = find(topic);
+        if (node == null || node.message == null) {
+            return;
+        }
+        node.message.release();
+        node.message = null;
+        size--;
+        // remove the empty branch
+        while (node.parent != null && node.message == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.name, node);
+            node = node.parent;
+        }
     }
 
     @Override
     public void retain(Topic topic, MqttPublishMessage msg) {
         final ByteBuf payload = msg.content();
-        byte[] rawPayload = new byte[payload.readableBytes()];
-        payload.getBytes(0, rawPayload);
-        final RetainedMessage toStore = new RetainedMessage(msg.fixedHeader().qosLevel(), rawPayload);
-        storage.put(topic, toStore);
+        final RetainedMessage toStore;
+        if (offHeap) {
+            ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(payload.readableBytes());
+            copy.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+            toStore = new RetainedMessage(msg.fixedHeader().qosLevel(), copy);
+        } else {
+            byte[] rawPayload = new byte[payload.readableBytes()];
+            payload.getBytes(payload.readerIndex(), rawPayload);
+            toStore = new RetainedMessage(msg.fixedHeader().qosLevel(), rawPayload);
+        }
+        synchronized (this) {
+            Node node = root;
+            for (Token token : topic.getTokens()) {
+                final String name = token.toString();
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node(node, name);
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            final RetainedMessage previous = node.message;
+            node.message = toStore;
+            if (previous != null) {
+                previous.release();
+            } else {
+                size++;
+            }
+        }
     }
 
     @Override
-    public boolean isEmpty() {
-        return storage.isEmpty();
+    public synchronized boolean isEmpty() {
+        return size == 0;
     }
 
     @Override
     public List<RetainedMessage> retainedOnTopic(String topic) {
         final Topic searchTopic = new Topic(topic);
         final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : storage.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (searchTopic.match(scanTopic)) {
-                matchingMessages.add(entry.getValue());
+        final List<Token> tokens = searchTopic.getTokens();
+        if (tokens == null) {
+            return matchingMessages;
+        }
+        if (!offHeap) {
+            collect(root, tokens, 0, matchingMessages);
+            return matchingMessages;
+        }
+        // the off heap payloads are retained under the same lock used by retain and cleanRetained,
+        // so they can't be released (and recycled) before the caller is done with them.
+        synchronized (this) {
+            collect(root, tokens, 0, matchingMessages);
+            for (int i = 0; i < matchingMessages.size(); i++) {
+                matchingMessages.set(i, matchingMessages.get(i).retainedCopy());
             }
         }
         return matchingMessages;
     }
+
+    private Node find(Topic topic) {
+        Node node = root;
+        for (Token token : topic.getTokens()) {
+            node = node.children.get(token.toString());
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private static void collect(Node node, List<Token> filter, int index, List<RetainedMessage> result) {
+        if (index == filter.size()) {
+            addMessage(node, result);
+            return;
+        }
+        final String name = filter.get(index).toString();
+        if ("#".equals(name)) {
+            // '#' also matches the parent level
+            collectAll(node, result);
+        } else if ("+".equals(name)) {
+            for (Node child : node.children.values()) {
+                collect(child, filter, index + 1, result);
+            }
+        } else {
+            final Node child = node.children.get(name);
+            if (child != null) {
+                collect(child, filter, index + 1, result);
+            }
+        }
+    }
+
+    private static void collectAll(Node node, List<RetainedMessage> result) {
+        addMessage(node, result);
+        for (Node child : node.children.values()) {
+            collectAll(child, result);
+        }
+    }
+
+    private static void addMessage(Node node, List<RetainedMessage> result) {
+        final RetainedMessage message = node.message;
+        if (message != null) {
+            result.add(message);
+        }
+    }
 }
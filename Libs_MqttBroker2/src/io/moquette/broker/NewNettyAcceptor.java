@@ -21,6 +21,8 @@ import io.moquette.broker.config.IConfig;
 import io.moquette.broker.metrics.*;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
@@ -38,6 +40,7 @@ import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -104,6 +107,11 @@ class NewNettyAcceptor {
     private boolean nettySoKeepalive;
     private int nettyChannelTimeoutSeconds;
     private int maxBytesInMessage;
+    private String flushStrategy;
+    private int flushInterval;
+    private int flushConsolidation;
+    private WriteBufferWaterMark writeBufferWaterMark;
+    private Optional<Boolean> pooledAllocator;
 
     private Class<? extends ServerSocketChannel> channelClass;
 
@@ -117,19 +125,38 @@ class NewNettyAcceptor {
         nettyChannelTimeoutSeconds = props.intProp(BrokerConstants.NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME, 10);
         maxBytesInMessage = props.intProp(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME,
                 BrokerConstants.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE);
+        flushStrategy = props.getProperty(BrokerConstants.NETTY_FLUSH_STRATEGY_PROPERTY_NAME,
+                                          BrokerConstants.FLUSH_STRATEGY_TIMED);
+        flushInterval = props.intProp(BrokerConstants.NETTY_FLUSH_INTERVAL_MS_PROPERTY_NAME,
+                                      BrokerConstants.DEFAULT_NETTY_FLUSH_INTERVAL_MS);
+        flushConsolidation = props.intProp(BrokerConstants.NETTY_FLUSH_CONSOLIDATION_PROPERTY_NAME,
+                                           BrokerConstants.DEFAULT_NETTY_FLUSH_CONSOLIDATION);
+        // when the high water mark is reached the channel is not writable and the QoS 1 and 2 messages are kept
+        // in the session queue until the pending bytes go below the low water mark.
+        final int lowWaterMark = props.intProp(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME, 0);
+        final int highWaterMark = props.intProp(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME, 0);
+        if (highWaterMark > 0) {
+            final int low = lowWaterMark > 0 ? Math.min(lowWaterMark, highWaterMark) : highWaterMark / 2;
+            writeBufferWaterMark = new WriteBufferWaterMark(low, highWaterMark);
+        }
+        final String pooled = props.getProperty(BrokerConstants.NETTY_POOLED_ALLOCATOR_PROPERTY_NAME);
+        pooledAllocator = pooled == null ? Optional.empty() : Optional.of(Boolean.parseBoolean(pooled));
+        // 0 = Netty default (twice the number of cores)
+        final int workerThreads = props.intProp(BrokerConstants.NETTY_WORKER_THREADS_PROPERTY_NAME, 0);
 
         boolean epoll = props.boolProp(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, false);
         if (epoll) {
             LOG.info("Netty is using Epoll");
             bossGroup = new EpollEventLoopGroup();
-            workerGroup = new EpollEventLoopGroup();
+            workerGroup = new EpollEventLoopGroup(workerThreads);
             channelClass = EpollServerSocketChannel.class;
         } else {
             LOG.info("Netty is using NIO");
             bossGroup = new NioEventLoopGroup();
-            workerGroup = new NioEventLoopGroup();
+            workerGroup = new NioEventLoopGroup(workerThreads);
             channelClass = NioServerSocketChannel.class;
         }
+        LOG.info("Netty flush strategy: {}", flushStrategy);
 
         final boolean useFineMetrics = props.boolProp(METRICS_ENABLE_PROPERTY_NAME, false);
         if (useFineMetrics) {
@@ -182,6 +209,13 @@ class NewNettyAcceptor {
                 .option(ChannelOption.SO_REUSEADDR, nettySoReuseaddr)
                 .childOption(ChannelOption.TCP_NODELAY, nettyTcpNodelay)
                 .childOption(ChannelOption.SO_KEEPALIVE, nettySoKeepalive);
+        if (writeBufferWaterMark != null) {
+            b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        }
+        if (pooledAllocator.isPresent()) {
+            b.childOption(ChannelOption.ALLOCATOR, pooledAllocator.get() ? PooledByteBufAllocator.DEFAULT
+                : UnpooledByteBufAllocator.DEFAULT);
+        }
         try {
             LOG.debug("Binding integration. host={}, port={}", host, port);
             // Bind and start to accept incoming connections.
@@ -223,7 +257,11 @@ class NewNettyAcceptor {
             pipeline.addLast("bugsnagCatcher", errorsCather.get());
         }
         pipeline.addFirst("bytemetrics", new BytesMetricsHandler(bytesMetricsCollector));
-        pipeline.addLast("autoflush", new AutoFlushHandler(50, TimeUnit.MILLISECONDS)); //b4x
+        if (BrokerConstants.FLUSH_STRATEGY_CONSOLIDATED.equals(flushStrategy)) {
+            pipeline.addLast("flushConsolidation", new FlushConsolidationHandler(flushConsolidation, true));
+        } else if (!BrokerConstants.FLUSH_STRATEGY_IMMEDIATE.equals(flushStrategy)) {
+            pipeline.addLast("autoflush", new AutoFlushHandler(flushInterval, TimeUnit.MILLISECONDS)); //b4x
+        }
         pipeline.addLast("decoder", new MqttDecoder(maxBytesInMessage));
         pipeline.addLast("encoder", MqttEncoder.INSTANCE);
         pipeline.addLast("metrics", new MessageMetricsHandler(metricsCollector));
@@ -325,6 +363,14 @@ class NewNettyAcceptor {
         });
     }
 
+    MessageMetrics messageMetrics() {
+        return metricsCollector.computeMetrics();
+    }
+
+    BytesMetrics bytesMetrics() {
+        return bytesMetricsCollector.computeMetrics();
+    }
+
     @SuppressWarnings("FutureReturnValueIgnored")
     public void close() {
         LOG.debug("Closing Netty acceptor...");
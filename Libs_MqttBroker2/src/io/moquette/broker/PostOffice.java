@@ -15,13 +15,13 @@
  */
 package io.moquette.broker;
 
+import io.moquette.broker.metrics.LatencyHistogram;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.security.IAuthorizatorPolicy;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +44,8 @@ class PostOffice {
     private final IRetainedRepository retainedRepository;
     private SessionRegistry sessionRegistry;
     private BrokerInterceptor interceptor;
+    // time taken to route each publish to the matching sessions
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
 
     PostOffice(ISubscriptionsDirectory subscriptions, IAuthorizatorPolicy authorizatorPolicy,
                IRetainedRepository retainedRepository, SessionRegistry sessionRegistry, BrokerInterceptor interceptor) {
@@ -58,6 +60,10 @@ class PostOffice {
         this.sessionRegistry = sessionRegistry;
     }
 
+    LatencyHistogram publishLatency() {
+        return publishLatency;
+    }
+
     public void fireWill(Session.Will will) {
         // MQTT 3.1.2.8-17
         publish2Subscribers(will.payload, new Topic(will.topic), will.qos);
@@ -111,9 +117,14 @@ class PostOffice {
                 MqttQoS qos = lowerQosToTheSubscriptionDesired(subscription, retainedQos);
 
 //                final ByteBuf origPayload = retainedMsg.getPayload();
-                final ByteBuf payloadBuf = Unpooled.wrappedBuffer(retainedMsg.getPayload());
+                try {
+                    final ByteBuf payloadBuf = retainedMsg.retainedPayload();
 //                ByteBuf payload = origPayload.retainedDuplicate();
-                targetSession.sendRetainedPublishOnSessionAtQos(subscription.getTopicFilter(), qos, payloadBuf);
+                    targetSession.sendRetainedPublishOnSessionAtQos(subscription.getTopicFilter(), qos, payloadBuf);
+                } finally {
+                    // releases the reference held by the off heap messages
+                    retainedMsg.release();
+                }
             }
         }
     }
@@ -207,6 +218,15 @@ class PostOffice {
     }
 
     private void publish2Subscribers(ByteBuf origPayload, Topic topic, MqttQoS publishingQos) {
+        final long start = System.nanoTime();
+        try {
+            dispatchToSubscribers(origPayload, topic, publishingQos);
+        } finally {
+            publishLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private void dispatchToSubscribers(ByteBuf origPayload, Topic topic, MqttQoS publishingQos) {
         Set<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
 
         for (final Subscription sub : topicMatchingSubscriptions) {
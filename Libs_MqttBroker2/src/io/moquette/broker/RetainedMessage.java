@@ -17,6 +17,8 @@
  
  package io.moquette.broker;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
 
 import java.io.Serializable;
@@ -25,10 +27,22 @@ public class RetainedMessage implements Serializable{
 
     private final MqttQoS qos;
     private final byte[] payload;
+    // not null when the payload is stored off heap
+    private final transient ByteBuf payloadBuffer;
 
     public RetainedMessage(MqttQoS qos, byte[] payload) {
         this.qos = qos;
         this.payload = payload;
+        this.payloadBuffer = null;
+    }
+
+    /**
+     * @param payloadBuffer the payload. The message takes ownership of the buffer and releases it in {@link #release()}.
+     * */
+    public RetainedMessage(MqttQoS qos, ByteBuf payloadBuffer) {
+        this.qos = qos;
+        this.payload = null;
+        this.payloadBuffer = payloadBuffer;
     }
 
     public MqttQoS qosLevel() {
@@ -36,6 +50,41 @@ public class RetainedMessage implements Serializable{
     }
 
     public byte[] getPayload() {
+        if (payloadBuffer != null) {
+            byte[] copy = new byte[payloadBuffer.readableBytes()];
+            payloadBuffer.getBytes(payloadBuffer.readerIndex(), copy);
+            return copy;
+        }
         return payload;
     }
+
+    /**
+     * @return a buffer with the payload that should be released by the caller.
+     * */
+    public ByteBuf retainedPayload() {
+        if (payloadBuffer == null) {
+            return Unpooled.wrappedBuffer(payload);
+        }
+        return payloadBuffer.retainedDuplicate();
+    }
+
+    /**
+     * @return a message that shares the off heap payload and holds its own reference to it. The caller should
+     * release it. Must be called while the message can't be released by the repository.
+     * */
+    RetainedMessage retainedCopy() {
+        if (payloadBuffer == null) {
+            return this;
+        }
+        return new RetainedMessage(qos, payloadBuffer.retainedDuplicate());
+    }
+
+    /**
+     * Releases the off heap payload, if there is one.
+     * */
+    public void release() {
+        if (payloadBuffer != null) {
+            payloadBuffer.release();
+        }
+    }
 }
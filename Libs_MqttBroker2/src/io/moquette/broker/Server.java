@@ -17,8 +17,13 @@ package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
 import io.moquette.broker.config.*;
+import io.moquette.broker.metrics.BytesMetrics;
+import io.moquette.broker.metrics.LatencyHistogram;
+import io.moquette.broker.metrics.MessageMetrics;
+import io.moquette.broker.metrics.SessionsMetrics;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.persistence.H2Builder;
+import io.moquette.persistence.MappedLogStore;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.security.*;
@@ -53,6 +58,8 @@ public class Server {
     private PostOffice dispatcher;
     private BrokerInterceptor interceptor;
     private H2Builder h2Builder;
+    private MappedLogStore mappedStore;
+    private SessionRegistry sessions;
 
     public static void main(String[] args) throws IOException {
         final Server server = new Server();
@@ -169,16 +176,29 @@ public class Server {
             subscriptionsRepository = h2Builder.subscriptionsRepository();
             queueRepository = h2Builder.queueRepository();
             retainedRepository = h2Builder.retainedRepository();
+        } else if (!config.getProperty(BrokerConstants.MMAP_STORE_PATH_PROPERTY_NAME, "").isEmpty()) {
+            LOG.trace("Configuring memory mapped subscriptions and queues store");
+            mappedStore = new MappedLogStore(config, scheduler).initStore();
+            subscriptionsRepository = mappedStore.subscriptionsRepository();
+            queueRepository = mappedStore.queueRepository();
+            retainedRepository = new MemoryRetainedRepository(
+                config.boolProp(BrokerConstants.RETAINED_OFF_HEAP_PROPERTY_NAME, false));
         } else {
             LOG.trace("Configuring in-memory subscriptions store");
             subscriptionsRepository = new MemorySubscriptionsRepository();
             queueRepository = new MemoryQueueRepository();
-            retainedRepository = new MemoryRetainedRepository();
+            retainedRepository = new MemoryRetainedRepository(
+                config.boolProp(BrokerConstants.RETAINED_OFF_HEAP_PROPERTY_NAME, false));
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory(
+            config.intProp(BrokerConstants.SUBSCRIPTIONS_MATCH_CACHE_SIZE_PROPERTY_NAME,
+                           CTrieSubscriptionDirectory.DEFAULT_MATCH_CACHE_SIZE));
         subscriptions.init(subscriptionsRepository);
-        SessionRegistry sessions = new SessionRegistry(subscriptions, queueRepository);
+        sessions = new SessionRegistry(subscriptions, queueRepository,
+            config.intProp(BrokerConstants.SESSION_INFLIGHT_WINDOW_PROPERTY_NAME,
+                           BrokerConstants.DEFAULT_SESSION_INFLIGHT_WINDOW));
+        sessions.restorePersistedSessions(subscriptionsRepository.listAllSubscriptions());
         dispatcher = new PostOffice(subscriptions, authorizatorPolicy, retainedRepository, sessions, interceptor);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
@@ -335,6 +355,11 @@ public class Server {
             LOG.trace("Shutting down H2 persistence {}");
             h2Builder.closeStore();
         }
+        if (mappedStore != null) {
+            LOG.trace("Shutting down memory mapped persistence");
+            mappedStore.closeStore();
+            mappedStore = null;
+        }
 
         LOG.info("Moquette integration has been stopped.");
     }
@@ -382,4 +407,45 @@ public class Server {
         LOG.info("Removing MQTT message interceptor. InterceptorId={}", interceptHandler.getID());
         interceptor.removeInterceptHandler(interceptHandler);
     }
+
+    /**
+     * SPI method used by Broker embedded applications to monitor the broker. The counters include all the MQTT
+     * messages (publishes, acks, pings...) read and written since the broker was started.
+     *
+     * @return the messages counters.
+     */
+    public MessageMetrics getMessageMetrics() {
+        checkStarted();
+        return acceptor.messageMetrics();
+    }
+
+    /**
+     * @return the number of bytes read and written since the broker was started.
+     */
+    public BytesMetrics getBytesMetrics() {
+        checkStarted();
+        return acceptor.bytesMetrics();
+    }
+
+    /**
+     * @return the number of sessions, connected clients, queued and inflight messages.
+     */
+    public SessionsMetrics getSessionsMetrics() {
+        checkStarted();
+        return sessions.computeMetrics();
+    }
+
+    /**
+     * @return the histogram of the time taken to route each publish to the matching sessions.
+     */
+    public LatencyHistogram getPublishLatency() {
+        checkStarted();
+        return dispatcher.publishLatency();
+    }
+
+    private void checkStarted() {
+        if (!initialized) {
+            throw new IllegalStateException("Can't read the metrics of a integration that is not yet started");
+        }
+    }
 }
@@ -34,7 +34,6 @@ class Session {
 
     private static final Logger LOG = LoggerFactory.getLogger(Session.class);
     private static final int FLIGHT_BEFORE_RESEND_MS = 5_000;
-    private static final int INFLIGHT_WINDOW_SIZE = 10;
 
     static class InFlightPacket implements Delayed {
 
@@ -94,17 +93,22 @@ class Session {
     private final Map<Integer, SessionRegistry.EnqueuedMessage> inflightWindow = new HashMap<>();
     private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
     private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
-    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE); // this should be configurable
+    private final int inflightWindowSize;
+    private final AtomicInteger inflightSlots;
 
-    Session(String clientId, boolean clean, Will will, Queue<SessionRegistry.EnqueuedMessage> sessionQueue) {
-        this(clean, clientId, sessionQueue);
+    Session(String clientId, boolean clean, Will will, Queue<SessionRegistry.EnqueuedMessage> sessionQueue,
+            int inflightWindowSize) {
+        this(clean, clientId, sessionQueue, inflightWindowSize);
         this.will = will;
     }
 
-    Session(boolean clean, String clientId, Queue<SessionRegistry.EnqueuedMessage> sessionQueue) {
+    Session(boolean clean, String clientId, Queue<SessionRegistry.EnqueuedMessage> sessionQueue,
+            int inflightWindowSize) {
         this.clientId = clientId;
         this.clean = clean;
         this.sessionQueue = sessionQueue;
+        this.inflightWindowSize = inflightWindowSize;
+        this.inflightSlots = new AtomicInteger(inflightWindowSize);
     }
 
     void update(boolean clean, Will will) {
@@ -132,6 +136,14 @@ class Session {
         return clientId;
     }
 
+    int queuedCount() {
+        return sessionQueue.size();
+    }
+
+    int inflightCount() {
+        return inflightWindow.size();
+    }
+
     public List<Subscription> getSubscriptions() {
         return new ArrayList<>(subscriptions);
     }
@@ -175,9 +187,11 @@ class Session {
     }
 
     public void processPubRec(int packetId) {
-        inflightWindow.remove(packetId);
+        messageAcknowledged(inflightWindow.remove(packetId));
         inflightSlots.incrementAndGet();
-        if (canSkipQueue()) {
+        // the PUBREL reuses the packet id of the PUBLISH, so it is sent directly when possible, also with a
+        // persistent queue
+        if (sessionQueue instanceof IAcknowledgedQueue ? canSend() : canSkipQueue()) {
             inflightSlots.decrementAndGet();
             int pubRelPacketId = packetId/*mqttConnection.nextPacketId()*/;
             inflightWindow.put(pubRelPacketId, new SessionRegistry.PubRelMarker());
@@ -188,11 +202,12 @@ class Session {
             drainQueueToConnection();
         } else {
             sessionQueue.add(new SessionRegistry.PubRelMarker());
+            drainQueueToConnection();
         }
     }
 
     public void processPubComp(int messageID) {
-        inflightWindow.remove(messageID);
+        messageAcknowledged(inflightWindow.remove(messageID));
         inflightSlots.incrementAndGet();
 
         drainQueueToConnection();
@@ -240,6 +255,7 @@ class Session {
         } else {
             final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload);
             sessionQueue.add(msg);
+            drainQueueToConnection();
         }
     }
 
@@ -257,25 +273,38 @@ class Session {
         } else {
             final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload);
             sessionQueue.add(msg);
+            drainQueueToConnection();
         }
     }
 
     private boolean canSkipQueue() {
-        return sessionQueue.isEmpty() &&
-            inflightSlots.get() > 0 &&
+        // the messages of a persistent queue are stored before they are sent
+        return !(sessionQueue instanceof IAcknowledgedQueue) &&
+            sessionQueue.isEmpty() &&
+            canSend();
+    }
+
+    private boolean canSend() {
+        return inflightSlots.get() > 0 &&
             connected() &&
             mqttConnection.channel.isWritable();
     }
 
     void pubAckReceived(int ackPacketId) {
         // TODO remain to invoke in somehow m_interceptor.notifyMessageAcknowledged
-        inflightWindow.remove(ackPacketId);
+        messageAcknowledged(inflightWindow.remove(ackPacketId));
         inflightSlots.incrementAndGet();
         drainQueueToConnection();
     }
 
+    private void messageAcknowledged(SessionRegistry.EnqueuedMessage msg) {
+        if (msg != null && sessionQueue instanceof IAcknowledgedQueue) {
+            ((IAcknowledgedQueue) sessionQueue).acknowledged(msg);
+        }
+    }
+
     public void resendInflightNotAcked() {
-        Collection<InFlightPacket> expired = new ArrayList<>(INFLIGHT_WINDOW_SIZE);
+        Collection<InFlightPacket> expired = new ArrayList<>(inflightWindowSize);
         inflightTimeouts.drainTo(expired);
 
         debugLogPacketIds(expired);
@@ -315,7 +344,8 @@ class Session {
 
     private void drainQueueToConnection() {
         // consume the queue
-        while (!canSkipQueue()) {
+        while (!sessionQueue.isEmpty() && inflightSlots.get() > 0 && connected() &&
+               mqttConnection.channel.isWritable()) {
             final SessionRegistry.EnqueuedMessage msg = sessionQueue.remove();
             inflightSlots.decrementAndGet();
             int sendPacketId = mqttConnection.nextPacketId();
@@ -325,6 +355,8 @@ class Session {
                 mqttConnection.sendIfWritableElseDrop(pubRel);
             } else {
                 final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
+                // same as the messages that skip the queue
+                inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
                 MqttPublishMessage publishMsg = MQTTConnection.notRetainedPublishWithMessageId(msgPub.topic.toString(),
                     msgPub.publishingQos,
                     msgPub.payload, sendPacketId);
@@ -16,6 +16,7 @@
 package io.moquette.broker;
 
 import io.moquette.broker.Session.SessionStatus;
+import io.moquette.broker.metrics.SessionsMetrics;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
@@ -26,6 +27,9 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -36,20 +40,32 @@ public class SessionRegistry {
     public abstract static class EnqueuedMessage {
     }
 
-    static class PublishedMessage extends EnqueuedMessage {
+    public static class PublishedMessage extends EnqueuedMessage {
 
         final Topic topic;
         final MqttQoS publishingQos;
         final ByteBuf payload;
 
-        PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload) {
+        public PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload) {
             this.topic = topic;
             this.publishingQos = publishingQos;
             this.payload = payload;
         }
+
+        public Topic getTopic() {
+            return topic;
+        }
+
+        public MqttQoS getPublishingQos() {
+            return publishingQos;
+        }
+
+        public ByteBuf getPayload() {
+            return payload;
+        }
     }
 
-    static final class PubRelMarker extends EnqueuedMessage {
+    public static final class PubRelMarker extends EnqueuedMessage {
     }
 
     private enum PostConnectAction {
@@ -62,10 +78,18 @@ public class SessionRegistry {
     private final ISubscriptionsDirectory subscriptionsDirectory;
     private final IQueueRepository queueRepository;
     private final ConcurrentMap<String, Queue<SessionRegistry.EnqueuedMessage>> queues = new ConcurrentHashMap<>();
-
-    SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory, IQueueRepository queueRepository) {
+    private final int inflightWindowSize;
+
+    /**
+     * @param inflightWindowSize maximum number of QoS 1 and 2 messages sent to each client and not yet
+     *                           acknowledged. Further messages are queued.
+     */
+    SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory, IQueueRepository queueRepository,
+                    int inflightWindowSize) {
         this.subscriptionsDirectory = subscriptionsDirectory;
         this.queueRepository = queueRepository;
+        // packet ids are 16 bits
+        this.inflightWindowSize = Math.max(1, Math.min(inflightWindowSize, 0xFFFF));
     }
 
     void bindToSession(MQTTConnection mqttConnection, MqttConnectMessage msg, String clientId) {
@@ -165,6 +189,27 @@ public class SessionRegistry {
         return postConnectAction;
     }
 
+    /**
+     * Recreates, in disconnected state, the persistent sessions whose queues were restored by the queue repository.
+     * Messages published while these clients are offline are queued, and sent when they reconnect.
+     *
+     * @param storedSubscriptions the subscriptions restored by the subscriptions repository.
+     */
+    void restorePersistedSessions(List<Subscription> storedSubscriptions) {
+        for (Map.Entry<String, Queue<EnqueuedMessage>> entry : queueRepository.listPersistedQueues().entrySet()) {
+            final String clientId = entry.getKey();
+            queues.put(clientId, entry.getValue());
+            pool.putIfAbsent(clientId, new Session(false, clientId, entry.getValue(), inflightWindowSize));
+        }
+        for (Subscription subscription : storedSubscriptions) {
+            final Session session = pool.get(subscription.getClientId());
+            if (session != null) {
+                session.addSubscriptions(Collections.singletonList(subscription));
+            }
+        }
+        LOG.debug("Restored {} persistent sessions", pool.size());
+    }
+
     private void reactivateSubscriptions(Session session) {
         for (Subscription existingSub : session.getSubscriptions()) {
             // TODO
@@ -185,9 +230,9 @@ public class SessionRegistry {
         final Session newSession;
         if (msg.variableHeader().isWillFlag()) {
             final Session.Will will = createWill(msg);
-            newSession = new Session(clientId, clean, will, sessionQueue);
+            newSession = new Session(clientId, clean, will, sessionQueue, inflightWindowSize);
         } else {
-            newSession = new Session(clean, clientId, sessionQueue);
+            newSession = new Session(clean, clientId, sessionQueue, inflightWindowSize);
         }
 
         newSession.markConnected();
@@ -219,6 +264,17 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    /**
+     * Collects the sessions counters. The values are read without synchronization and are approximate.
+     */
+    SessionsMetrics computeMetrics() {
+        final SessionsMetrics metrics = new SessionsMetrics();
+        for (Session session : pool.values()) {
+            metrics.addSession(session.connected(), session.queuedCount(), session.inflightCount());
+        }
+        return metrics;
+    }
+
     public void remove(String clientID) {
         pool.remove(clientID);
     }
@@ -234,5 +290,6 @@ public class SessionRegistry {
 
     private void dropQueuesForClient(String clientId) {
         queues.remove(clientId);
+        queueRepository.dropQueue(clientId);
     }
 }
@@ -16,28 +16,28 @@
 
 package io.moquette.broker.metrics;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Collects all the metrics from the various pipeline.
  */
 public class BytesMetricsCollector {
 
-    private AtomicLong readBytes = new AtomicLong();
-    private AtomicLong wroteBytes = new AtomicLong();
+    private final LongAdder readBytes = new LongAdder();
+    private final LongAdder wroteBytes = new LongAdder();
 
     public BytesMetrics computeMetrics() {
         BytesMetrics allMetrics = new BytesMetrics();
-        allMetrics.incrementRead(readBytes.get());
-        allMetrics.incrementWrote(wroteBytes.get());
+        allMetrics.incrementRead(readBytes.sum());
+        allMetrics.incrementWrote(wroteBytes.sum());
         return allMetrics;
     }
 
     public void sumReadBytes(long count) {
-        readBytes.getAndAdd(count);
+        readBytes.add(count);
     }
 
     public void sumWroteBytes(long count) {
-        wroteBytes.getAndAdd(count);
+        wroteBytes.add(count);
     }
 }
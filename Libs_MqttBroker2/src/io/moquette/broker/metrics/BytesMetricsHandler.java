@@ -47,25 +47,21 @@ public class BytesMetricsHandler extends ChannelDuplexHandler {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         BytesMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
-        metrics.incrementRead(((ByteBuf) msg).readableBytes());
+        final int bytes = ((ByteBuf) msg).readableBytes();
+        metrics.incrementRead(bytes);
+        m_collector.sumReadBytes(bytes);
         ctx.fireChannelRead(msg);
     }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
         BytesMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
-        metrics.incrementWrote(((ByteBuf) msg).writableBytes());
+        final int bytes = ((ByteBuf) msg).readableBytes();
+        metrics.incrementWrote(bytes);
+        m_collector.sumWroteBytes(bytes);
         ctx.write(msg, promise).addListener(CLOSE_ON_FAILURE);
     }
 
-    @Override
-    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
-        BytesMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
-        m_collector.sumReadBytes(metrics.readBytes());
-        m_collector.sumWroteBytes(metrics.wroteBytes());
-        super.close(ctx, promise);
-    }
-
     public static BytesMetrics getBytesMetrics(Channel channel) {
         return channel.attr(ATTR_KEY_METRICS).get();
     }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.broker.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations with power of two buckets. Bucket 0 counts the durations shorter than 1
+ * microsecond and bucket i counts the durations in [2^(i-1), 2^i) microseconds.
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+
+    public void record(long nanos) {
+        final long micros = nanos / 1000;
+        final int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        totalNanos.add(nanos);
+    }
+
+    public Snapshot snapshot() {
+        final long[] c = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+        }
+        return new Snapshot(c, totalNanos.sum());
+    }
+
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long totalNanos;
+        private final long count;
+
+        Snapshot(long[] counts, long totalNanos) {
+            this.counts = counts;
+            this.totalNanos = totalNanos;
+            long sum = 0;
+            for (long c : counts) {
+                sum += c;
+            }
+            this.count = sum;
+        }
+
+        /**
+         * @return the values recorded after the previous snapshot was taken.
+         */
+        public Snapshot minus(Snapshot previous) {
+            final long[] c = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                c[i] = counts[i] - previous.counts[i];
+            }
+            return new Snapshot(c, totalNanos - previous.totalNanos);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long bucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * @return the upper bound (exclusive) of the bucket, in microseconds.
+         */
+        public static long bucketUpperBoundMicros(int bucket) {
+            return 1L << bucket;
+        }
+
+        public double meanMicros() {
+            return count == 0 ? 0 : totalNanos / 1000.0 / count;
+        }
+
+        /**
+         * @param percentile value between 0 and 100.
+         * @return the upper bound of the bucket that holds the percentile, in microseconds.
+         */
+        public long percentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                sum += counts[i];
+                if (sum >= rank) {
+                    return bucketUpperBoundMicros(i);
+                }
+            }
+            return bucketUpperBoundMicros(BUCKETS - 1);
+        }
+    }
+}
@@ -16,28 +16,28 @@
 
 package io.moquette.broker.metrics;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Collects all the metrics from the various pipeline.
  */
 public class MessageMetricsCollector {
 
-    private AtomicLong readMsgs = new AtomicLong();
-    private AtomicLong wroteMsgs = new AtomicLong();
+    private final LongAdder readMsgs = new LongAdder();
+    private final LongAdder wroteMsgs = new LongAdder();
 
     public MessageMetrics computeMetrics() {
         MessageMetrics allMetrics = new MessageMetrics();
-        allMetrics.incrementRead(readMsgs.get());
-        allMetrics.incrementWrote(wroteMsgs.get());
+        allMetrics.incrementRead(readMsgs.sum());
+        allMetrics.incrementWrote(wroteMsgs.sum());
         return allMetrics;
     }
 
     public void sumReadMessages(long count) {
-        readMsgs.getAndAdd(count);
+        readMsgs.add(count);
     }
 
     public void sumWroteMessages(long count) {
-        wroteMsgs.getAndAdd(count);
+        wroteMsgs.add(count);
     }
 }
@@ -47,6 +47,7 @@ public class MessageMetricsHandler extends ChannelDuplexHandler {
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         MessageMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
         metrics.incrementRead(1);
+        m_collector.sumReadMessages(1);
         ctx.fireChannelRead(msg);
     }
 
@@ -54,17 +55,10 @@ public class MessageMetricsHandler extends ChannelDuplexHandler {
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
         MessageMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
         metrics.incrementWrote(1);
+        m_collector.sumWroteMessages(1);
         ctx.write(msg, promise).addListener(CLOSE_ON_FAILURE);
     }
 
-    @Override
-    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
-        MessageMetrics metrics = ctx.channel().attr(ATTR_KEY_METRICS).get();
-        m_collector.sumReadMessages(metrics.messagesRead());
-        m_collector.sumWroteMessages(metrics.messagesWrote());
-        super.close(ctx, promise);
-    }
-
     public static MessageMetrics getMessageMetrics(Channel channel) {
         return channel.attr(ATTR_KEY_METRICS).get();
     }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.broker.metrics;
+
+public class SessionsMetrics {
+
+    private int m_sessions;
+    private int m_connected;
+    private long m_queuedMessages;
+    private int m_maxQueueDepth;
+    private long m_inflightMessages;
+
+    public void addSession(boolean connected, int queued, int inflight) {
+        m_sessions++;
+        if (connected) {
+            m_connected++;
+        }
+        m_queuedMessages += queued;
+        m_maxQueueDepth = Math.max(m_maxQueueDepth, queued);
+        m_inflightMessages += inflight;
+    }
+
+    public int sessions() {
+        return m_sessions;
+    }
+
+    public int connectedSessions() {
+        return m_connected;
+    }
+
+    public long queuedMessages() {
+        return m_queuedMessages;
+    }
+
+    public int maxQueueDepth() {
+        return m_maxQueueDepth;
+    }
+
+    public long inflightMessages() {
+        return m_inflightMessages;
+    }
+}
@@ -21,28 +21,40 @@ class CNode {
 
     Token token;
     private List<INode> children;
+    // children indexed by their token, so that lookups don't need to scan all the children
+    private Map<Token, INode> childrenByToken;
     Set<Subscription> subscriptions;
 
     CNode() {
         this.children = new ArrayList<>();
+        this.childrenByToken = new HashMap<>();
         this.subscriptions = new HashSet<>();
     }
 
     //Copy constructor
-    private CNode(Token token, List<INode> children, Set<Subscription> subscriptions) {
+    private CNode(Token token, List<INode> children, Map<Token, INode> childrenByToken, Set<Subscription> subscriptions) {
         this.token = token; // keep reference, root comparison in directory logic relies on it for now.
         this.subscriptions = new HashSet<>(subscriptions);
         this.children = new ArrayList<>(children);
+        this.childrenByToken = new HashMap<>(childrenByToken);
     }
 
     boolean anyChildrenMatch(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return true;
-            }
+        return matchingChild(token) != null;
+    }
+
+    /**
+     * @return the child with the given token, or null if there is no such child (or if it was removed).
+     * */
+    INode matchingChild(Token token) {
+        if (token == null) {
+            return null;
         }
-        return false;
+        final INode iNode = childrenByToken.get(token);
+        if (iNode == null || !iNode.mainNode().equalsToken(token)) {
+            return null;
+        }
+        return iNode;
     }
 
     List<INode> allChildren() {
@@ -50,11 +62,9 @@ class CNode {
     }
 
     INode childOf(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return iNode;
-            }
+        final INode iNode = matchingChild(token);
+        if (iNode != null) {
+            return iNode;
         }
         throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
     }
@@ -69,14 +79,17 @@ class CNode {
     }
 
     CNode copy() {
-        return new CNode(this.token, this.children, this.subscriptions);
+        return new CNode(this.token, this.children, this.childrenByToken, this.subscriptions);
     }
 
     public void add(INode newINode) {
         this.children.add(newINode);
+        // a new child replaces a tombed child with the same token
+        this.childrenByToken.put(newINode.mainNode().token, newINode);
     }
     public void remove(INode node) {
         this.children.remove(node);
+        this.childrenByToken.values().remove(node);
     }
 
     CNode addSubscription(Subscription newSubscription) {
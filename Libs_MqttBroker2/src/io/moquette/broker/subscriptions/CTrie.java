@@ -19,6 +19,7 @@
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
@@ -60,49 +61,49 @@ public class CTrie {
         return Optional.of(inode.mainNode());
     }
 
-    enum NavigationAction {
-        MATCH, GODEEP, STOP
+    /**
+     * Returns the subscriptions that match the given (published) topic.
+     * Walks only the children that can match the current token (exact, single level and multi level wildcards)
+     * and collects the subscriptions into a single set.
+     * */
+    public Set<Subscription> recursiveMatch(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<Subscription> subscriptions = new HashSet<>();
+        matchChildren(tokens, 0, this.root.mainNode(), subscriptions);
+        return subscriptions;
     }
 
-    private NavigationAction evaluate(Topic topic, CNode cnode) {
-        if (Token.MULTI.equals(cnode.token)) {
-            return NavigationAction.MATCH;
+    private void matchChildren(List<Token> tokens, int index, CNode cnode, Set<Subscription> subscriptions) {
+        // '#' also matches the parent level
+        final INode multi = cnode.matchingChild(Token.MULTI);
+        if (multi != null) {
+            subscriptions.addAll(multi.mainNode().subscriptions);
         }
-        if (topic.isEmpty()) {
-            return NavigationAction.STOP;
+        if (index == tokens.size()) {
+            return;
         }
-        final Token token = topic.headToken();
-        if (!(Token.SINGLE.equals(cnode.token) || cnode.token.equals(token) || ROOT.equals(cnode.token))) {
-            return NavigationAction.STOP;
+        final Token token = tokens.get(index);
+        final INode exact = cnode.matchingChild(token);
+        if (exact != null) {
+            matchNode(tokens, index + 1, exact.mainNode(), subscriptions);
+        }
+        final INode single = cnode.matchingChild(Token.SINGLE);
+        if (single != null && single != exact) {
+            matchNode(tokens, index + 1, single.mainNode(), subscriptions);
         }
-        return NavigationAction.GODEEP;
-    }
-
-    public Set<Subscription> recursiveMatch(Topic topic) {
-        return recursiveMatch(topic, this.root);
     }
 
-    private Set<Subscription> recursiveMatch(Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
-        NavigationAction action = evaluate(topic, cnode);
-        if (action == NavigationAction.MATCH) {
-            return cnode.subscriptions;
-        }
-        if (action == NavigationAction.STOP) {
-            return Collections.emptySet();
-        }
+    private void matchNode(List<Token> tokens, int index, CNode cnode, Set<Subscription> subscriptions) {
         if (cnode instanceof TNode) {
-            return Collections.emptySet();
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.token)) ? topic : topic.exceptHeadToken();
-        Set<Subscription> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
+        if (index == tokens.size()) {
             subscriptions.addAll(cnode.subscriptions);
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
-        }
-        return subscriptions;
+        matchChildren(tokens, index, cnode, subscriptions);
     }
 
     public void addToTree(Subscription newSubscription) {
@@ -20,13 +20,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
 
+    public static final int DEFAULT_MATCH_CACHE_SIZE = 10000;
+
     private CTrie ctrie;
     private volatile ISubscriptionsRepository subscriptionsRepository;
+    // topic -> matching subscriptions (after qos sharpening). Cleared whenever the subscriptions change.
+    private final ConcurrentHashMap<Topic, Set<Subscription>> matchCache = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final int matchCacheSize;
+
+    public CTrieSubscriptionDirectory() {
+        this(DEFAULT_MATCH_CACHE_SIZE);
+    }
+
+    /**
+     * @param matchCacheSize maximum number of topics kept in the matching subscriptions cache. 0 disables the cache.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this.matchCacheSize = matchCacheSize;
+    }
 
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
@@ -67,10 +86,42 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         return ctrie.recursiveMatch(topic);
     }
 
+    /**
+     * The returned set is shared between callers and must not be modified.
+     * */
     @Override
     public Set<Subscription> matchQosSharpening(Topic topic) {
-        final Set<Subscription> subscriptions = matchWithoutQosSharpening(topic);
+        if (matchCacheSize <= 0) {
+            return sharpenQos(matchWithoutQosSharpening(topic));
+        }
+        Set<Subscription> cached = matchCache.get(topic);
+        if (cached != null) {
+            return cached;
+        }
+        final long gen = generation.get();
+        final Set<Subscription> result = Collections.unmodifiableSet(sharpenQos(matchWithoutQosSharpening(topic)));
+        if (matchCache.size() >= matchCacheSize) {
+            // evict an arbitrary entry
+            Iterator<Topic> it = matchCache.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        matchCache.put(topic, result);
+        // the subscriptions were changed while matching
+        if (generation.get() != gen) {
+            matchCache.remove(topic, result);
+        }
+        return result;
+    }
+
+    private void invalidateMatchCache() {
+        generation.incrementAndGet();
+        matchCache.clear();
+    }
 
+    private static Set<Subscription> sharpenQos(Set<Subscription> subscriptions) {
         Map<String, Subscription> subsGroupedByClient = new HashMap<>();
         for (Subscription sub : subscriptions) {
             Subscription existingSub = subsGroupedByClient.get(sub.clientId);
@@ -85,6 +136,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     @Override
     public void add(Subscription newSubscription) {
         ctrie.addToTree(newSubscription);
+        invalidateMatchCache();
         subscriptionsRepository.addNewSubscription(newSubscription);
     }
 
@@ -98,6 +150,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     @Override
     public void removeSubscription(Topic topic, String clientID) {
         ctrie.removeFromTree(topic, clientID);
+        invalidateMatchCache();
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
@@ -0,0 +1,797 @@
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.IQueueRepository;
+import io.moquette.broker.ISubscriptionsRepository;
+import io.moquette.broker.SessionRegistry.EnqueuedMessage;
+import io.moquette.broker.SessionRegistry.PubRelMarker;
+import io.moquette.broker.SessionRegistry.PublishedMessage;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of memory mapped segment files, that persists the subscriptions and the queues of the
+ * persistent (not clean) sessions.
+ * <p>
+ * Each change is appended as a record (length, crc32, body) to the current segment. The log is replayed when the
+ * store is opened. Writes go to the OS page cache immediately. With a positive sync interval they are forced to the
+ * disk every sync interval, the writers do not wait for the force and the writes of the last interval can be lost
+ * if the machine crashes. With a sync interval of 0 each writer waits until its record is forced, and writers that
+ * wait together share a single force (group commit). The disk is always forced outside of the store lock.
+ * When most of the log holds removed entries, the live state is written to a new snapshot segment and the older
+ * segments are deleted (compaction).
+ * <p>
+ * A message stays in the store until the client acknowledges it. The messages that were sent and not yet
+ * acknowledged when the process stopped are restored and sent again.
+ */
+public class MappedLogStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedLogStore.class);
+
+    private static final int MAGIC = 0x4D514C47;
+    // version 2: the messages are removed by their sequence when they are acknowledged
+    private static final int FORMAT_VERSION = 2;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final byte QUEUE_CREATE = 1;
+    private static final byte ENQUEUE = 2;
+    private static final byte ACK = 3;
+    private static final byte DROP_QUEUE = 4;
+    private static final byte SUBSCRIBE = 5;
+    private static final byte UNSUBSCRIBE = 6;
+    private static final byte RESET = 7;
+
+    private static final byte KIND_PUBLISH = 0;
+    private static final byte KIND_PUBREL = 1;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_SYNC_INTERVAL_MS = 100;
+
+    private static final class Segment {
+
+        final long id;
+        final File file;
+        final int used;
+        MappedByteBuffer buffer;
+        RandomAccessFile raf;
+
+        Segment(long id, File file, int used) {
+            this.id = id;
+            this.file = file;
+            this.used = used;
+        }
+
+        void close() {
+            if (buffer != null) {
+                unmap(buffer);
+                buffer = null;
+            }
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing segment {}", file, e);
+                }
+                raf = null;
+            }
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int syncInterval;
+    private final ScheduledExecutorService scheduler;
+
+    // held while the segments are forced and while the segments that are no longer used are unmapped.
+    // Lock order: syncLock before this.
+    private final Object syncLock = new Object();
+    // guarded by syncLock
+    private long syncedRecords;
+
+    // all the fields below are guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment current;
+    private boolean closed;
+    private long appendedRecords;
+    private long nextSequence = 1;
+    // previous segments with writes that were not forced yet
+    private final List<Segment> unsynced = new ArrayList<>();
+    // segments removed by the compaction. They are unmapped and deleted by the next sync.
+    private final List<Segment> retired = new ArrayList<>();
+    private long totalBytes;
+    private long liveBytes;
+    private final Map<String, MappedPersistentQueue> queues = new LinkedHashMap<>();
+    private final Map<String, Subscription> subscriptions = new LinkedHashMap<>();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private final CRC32 crc = new CRC32();
+
+    public MappedLogStore(IConfig props, ScheduledExecutorService scheduler) {
+        this.dir = new File(props.getProperty(BrokerConstants.MMAP_STORE_PATH_PROPERTY_NAME, ""));
+        this.segmentSize = props.intProp(BrokerConstants.MMAP_STORE_SEGMENT_SIZE_PROPERTY_NAME, DEFAULT_SEGMENT_SIZE);
+        this.syncInterval = props.intProp(BrokerConstants.MMAP_STORE_SYNC_INTERVAL_PROPERTY_NAME,
+                                          DEFAULT_SYNC_INTERVAL_MS);
+        this.scheduler = scheduler;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public synchronized MappedLogStore initStore() throws IOException {
+        LOG.info("Initializing memory mapped store in {}", dir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create store folder: " + dir);
+        }
+        recover();
+        if (segments.size() > 1) {
+            compact();
+        }
+        if (syncInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Memory mapped store restored {} queues and {} subscriptions", queues.size(), subscriptions.size());
+        return this;
+    }
+
+    public ISubscriptionsRepository subscriptionsRepository() {
+        return new MappedSubscriptionsRepository(this);
+    }
+
+    public IQueueRepository queueRepository() {
+        return new MappedQueueRepository(this);
+    }
+
+    public void closeStore() {
+        synchronized (syncLock) {
+            sync();
+            synchronized (this) {
+                for (Segment segment : segments) {
+                    segment.close();
+                }
+                segments.clear();
+                unsynced.clear();
+                current = null;
+                closed = true;
+            }
+        }
+    }
+
+    /**
+     * Forces the pending writes to the disk. The store lock is only held while the segments are collected.
+     */
+    void sync() {
+        synchronized (syncLock) {
+            final long records;
+            final List<Segment> toForce;
+            final List<Segment> toClose;
+            synchronized (this) {
+                records = appendedRecords;
+                toForce = new ArrayList<>(unsynced);
+                unsynced.clear();
+                if (records > syncedRecords && current != null && current.buffer != null) {
+                    toForce.add(current);
+                }
+                toClose = new ArrayList<>(retired);
+                retired.clear();
+            }
+            for (Segment segment : toForce) {
+                segment.buffer.force();
+            }
+            syncedRecords = records;
+            for (Segment segment : toClose) {
+                segment.close();
+                if (!segment.file.delete()) {
+                    // it will be deleted when the store is opened again
+                    LOG.warn("Failed to delete segment {}", segment.file);
+                }
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The store is closed");
+        }
+    }
+
+    /**
+     * Waits until the record is forced to the disk, when there is no sync interval. Called without holding the store
+     * lock, so the writers that wait together are forced once.
+     */
+    private void awaitSync(long record) {
+        if (syncInterval > 0) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedRecords < record) {
+                sync();
+            }
+        }
+    }
+
+    // queues
+
+    MappedPersistentQueue openQueue(String clientId) {
+        final MappedPersistentQueue queue;
+        final long record;
+        synchronized (this) {
+            checkOpen();
+            final MappedPersistentQueue existing = queues.get(clientId);
+            if (existing != null) {
+                return existing;
+            }
+            queue = new MappedPersistentQueue(this, clientId);
+            queues.put(clientId, queue);
+            record = append(encodeQueueRecord(QUEUE_CREATE, clientId), true);
+        }
+        awaitSync(record);
+        return queue;
+    }
+
+    synchronized Map<String, MappedPersistentQueue> persistedQueues() {
+        return new LinkedHashMap<>(queues);
+    }
+
+    void dropQueue(String clientId) {
+        final long record;
+        synchronized (this) {
+            checkOpen();
+            final MappedPersistentQueue queue = queues.remove(clientId);
+            if (queue == null) {
+                return;
+            }
+            queue.dropped = true;
+            liveBytes -= queueRecordSize(clientId);
+            for (EnqueuedMessage msg : queue.sequences.keySet()) {
+                liveBytes -= enqueueRecordSize(clientId, msg);
+            }
+            queue.sequences.clear();
+            record = append(encodeQueueRecord(DROP_QUEUE, clientId), false);
+        }
+        awaitSync(record);
+    }
+
+    // the record is appended before the queue is changed, as the append can write a snapshot of the current state
+    void enqueue(MappedPersistentQueue queue, EnqueuedMessage msg) {
+        final long record;
+        synchronized (this) {
+            checkOpen();
+            if (!queue.dropped) {
+                final long sequence = nextSequence++;
+                append(encodeEnqueue(queue.name, sequence, msg), true);
+                queue.sequences.put(msg, sequence);
+            }
+            queue.items.offer(msg);
+            record = appendedRecords;
+        }
+        awaitSync(record);
+    }
+
+    /**
+     * Removes the message from the store. The writer doesn't wait for the disk, as a lost ACK record only causes the
+     * message to be sent again after a restart.
+     */
+    synchronized void acknowledge(MappedPersistentQueue queue, EnqueuedMessage msg) {
+        checkOpen();
+        final Long sequence = queue.sequences.remove(msg);
+        if (sequence == null || queue.dropped) {
+            return;
+        }
+        // updated before the append, which can reset the counters with a compaction
+        liveBytes -= enqueueRecordSize(queue.name, msg);
+        scratch.clear();
+        scratch.put(ACK);
+        putString(queue.name);
+        ensureCapacity(8);
+        scratch.putLong(sequence);
+        scratch.flip();
+        append(scratch, false);
+    }
+
+    // subscriptions
+
+    synchronized List<Subscription> listSubscriptions() {
+        return new ArrayList<>(subscriptions.values());
+    }
+
+    void subscribe(Subscription subscription) {
+        final long record;
+        synchronized (this) {
+            checkOpen();
+            final String key = subscriptionKey(subscription.getTopicFilter().toString(), subscription.getClientId());
+            final Subscription previous = subscriptions.put(key, subscription);
+            if (previous != null) {
+                liveBytes -= encodeSubscribe(previous).remaining() + RECORD_HEADER_SIZE;
+            }
+            record = append(encodeSubscribe(subscription), true);
+        }
+        awaitSync(record);
+    }
+
+    void unsubscribe(String topicFilter, String clientId) {
+        final long record;
+        synchronized (this) {
+            checkOpen();
+            final Subscription previous = subscriptions.remove(subscriptionKey(topicFilter, clientId));
+            if (previous == null) {
+                return;
+            }
+            liveBytes -= encodeSubscribe(previous).remaining() + RECORD_HEADER_SIZE;
+            scratch.clear();
+            scratch.put(UNSUBSCRIBE);
+            putString(clientId);
+            putString(topicFilter);
+            scratch.flip();
+            record = append(scratch, false);
+        }
+        awaitSync(record);
+    }
+
+    private static String subscriptionKey(String topicFilter, String clientId) {
+        return topicFilter + "-" + clientId;
+    }
+
+    // encoding
+
+    private ByteBuffer encodeQueueRecord(byte type, String clientId) {
+        scratch.clear();
+        scratch.put(type);
+        putString(clientId);
+        scratch.flip();
+        return scratch;
+    }
+
+    private ByteBuffer encodeEnqueue(String clientId, long sequence, EnqueuedMessage msg) {
+        scratch.clear();
+        scratch.put(ENQUEUE);
+        putString(clientId);
+        ensureCapacity(9);
+        scratch.putLong(sequence);
+        if (msg instanceof PublishedMessage) {
+            final PublishedMessage pub = (PublishedMessage) msg;
+            final ByteBuf payload = pub.getPayload();
+            scratch.put(KIND_PUBLISH);
+            putString(pub.getTopic().toString());
+            ensureCapacity(5 + payload.readableBytes());
+            scratch.put((byte) pub.getPublishingQos().value());
+            scratch.putInt(payload.readableBytes());
+            payload.getBytes(payload.readerIndex(), scratch.array(), scratch.position(), payload.readableBytes());
+            scratch.position(scratch.position() + payload.readableBytes());
+        } else {
+            scratch.put(KIND_PUBREL);
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    // the sizes below match the encode methods. They are calculated without copying the payloads.
+
+    private static int queueRecordSize(String clientId) {
+        return RECORD_HEADER_SIZE + 1 + 4 + utf8Length(clientId);
+    }
+
+    private static int enqueueRecordSize(String clientId, EnqueuedMessage msg) {
+        int size = RECORD_HEADER_SIZE + 1 + 4 + utf8Length(clientId) + 8 + 1;
+        if (msg instanceof PublishedMessage) {
+            final PublishedMessage pub = (PublishedMessage) msg;
+            size += 4 + utf8Length(pub.getTopic().toString()) + 1 + 4 + pub.getPayload().readableBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the length of s.getBytes(UTF_8), without encoding the string.
+     */
+    private static int utf8Length(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced with '?'
+                len++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    private ByteBuffer encodeSubscribe(Subscription subscription) {
+        scratch.clear();
+        scratch.put(SUBSCRIBE);
+        putString(subscription.getClientId());
+        putString(subscription.getTopicFilter().toString());
+        scratch.put((byte) subscription.getRequestedQos().value());
+        scratch.flip();
+        return scratch;
+    }
+
+    private void putString(String s) {
+        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(4 + b.length + 8);
+        scratch.putInt(b.length);
+        scratch.put(b);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (scratch.remaining() < extra) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + extra));
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+    }
+
+    private static String getString(ByteBuffer body) {
+        final int len = body.getInt();
+        final String s = new String(body.array(), body.arrayOffset() + body.position(), len, StandardCharsets.UTF_8);
+        body.position(body.position() + len);
+        return s;
+    }
+
+    // log
+
+    /**
+     * Appends the record to the current segment.
+     *
+     * @param live whether the record is part of the live state (used to decide when to compact the log).
+     * @return the number of the record, to be passed to {@link #awaitSync(long)}.
+     */
+    private long append(ByteBuffer body, boolean live) {
+        checkOpen();
+        final int recordSize = RECORD_HEADER_SIZE + body.remaining();
+        try {
+            if (current == null || current.buffer == null || current.buffer.remaining() < recordSize) {
+                if (segments.size() > 1 && liveBytes * 2 < totalBytes) {
+                    // the compaction reuses the scratch buffer
+                    final ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+                    copy.put(body);
+                    copy.flip();
+                    body = copy;
+                    compact();
+                }
+                // the snapshot segment is full
+                if (current == null || current.buffer == null || current.buffer.remaining() < recordSize) {
+                    roll(recordSize);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write to the store", e);
+        }
+        writeRecord(current.buffer, body);
+        totalBytes += recordSize;
+        if (live) {
+            liveBytes += recordSize;
+        }
+        return ++appendedRecords;
+    }
+
+    private void writeRecord(MappedByteBuffer buffer, ByteBuffer body) {
+        final int position = buffer.position();
+        final int length = body.remaining();
+        crc.reset();
+        crc.update(body.array(), body.arrayOffset() + body.position(), length);
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(body);
+        // the length is written last so a partially written record is never read
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+    }
+
+    private void roll(int recordSize) throws IOException {
+        if (current != null && current.buffer != null) {
+            // forced by the next sync
+            unsynced.add(current);
+        }
+        final long id = current == null ? 1 : current.id + 1;
+        final Segment segment = createSegment(segmentFile(id), id, Math.max(segmentSize, FILE_HEADER_SIZE + recordSize));
+        segments.add(segment);
+        current = segment;
+    }
+
+    private Segment createSegment(File file, long id, int size) throws IOException {
+        // never overwrite the records of an existing segment
+        if (file.exists()) {
+            throw new IOException("Segment already exists: " + file);
+        }
+        final Segment segment = new Segment(id, file, 0);
+        segment.raf = new RandomAccessFile(file, "rw");
+        segment.raf.setLength(size);
+        segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segment.buffer.putInt(MAGIC);
+        segment.buffer.putInt(FORMAT_VERSION);
+        return segment;
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("segment-%016d%s", id, SEGMENT_EXTENSION));
+    }
+
+    /**
+     * Writes the live state to a new segment and deletes the older segments.
+     */
+    private void compact() throws IOException {
+        LOG.debug("Compacting the store. Total bytes: {}, live bytes: {}", totalBytes, liveBytes);
+        final long id = current == null ? 1 : current.id + 1;
+        // first pass calculates the snapshot size
+        long size = FILE_HEADER_SIZE + writeSnapshot(null);
+        if (size > Integer.MAX_VALUE) {
+            LOG.warn("Store is too large to be compacted");
+            return;
+        }
+        final File temp = new File(dir, String.format("segment-%016d%s", id, TEMP_EXTENSION));
+        Segment snapshot = createSegment(temp, id, (int) size);
+        writeSnapshot(snapshot.buffer);
+        snapshot.buffer.force();
+        snapshot.close();
+        final File file = segmentFile(id);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp);
+        }
+        // the snapshot holds the live state, so the old segments are not forced. They might be forced right now
+        // by a sync that runs without the store lock, so they are unmapped by the next sync.
+        retired.addAll(segments);
+        segments.clear();
+        unsynced.clear();
+        // the snapshot segment is closed. The next record will roll to a new segment.
+        current = new Segment(id, file, (int) size);
+        segments.add(current);
+        totalBytes = size - FILE_HEADER_SIZE;
+        liveBytes = totalBytes;
+    }
+
+    /**
+     * Writes the live state to the buffer, or only calculates its size if the buffer is null.
+     */
+    private long writeSnapshot(MappedByteBuffer buffer) {
+        long size = 0;
+        scratch.clear();
+        scratch.put(RESET);
+        scratch.flip();
+        size += writeOrCount(buffer, scratch);
+        for (Subscription subscription : subscriptions.values()) {
+            size += writeOrCount(buffer, encodeSubscribe(subscription));
+        }
+        // the payloads are only copied when they are written
+        for (MappedPersistentQueue queue : queues.values()) {
+            size += buffer == null ? queueRecordSize(queue.name)
+                : writeOrCount(buffer, encodeQueueRecord(QUEUE_CREATE, queue.name));
+            // the messages in flight are kept with their sequences, so their ACK records can be written later
+            final List<Map.Entry<EnqueuedMessage, Long>> stored = new ArrayList<>(queue.sequences.entrySet());
+            stored.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<EnqueuedMessage, Long> entry : stored) {
+                size += buffer == null ? enqueueRecordSize(queue.name, entry.getKey())
+                    : writeOrCount(buffer, encodeEnqueue(queue.name, entry.getValue(), entry.getKey()));
+            }
+        }
+        return size;
+    }
+
+    private long writeOrCount(MappedByteBuffer buffer, ByteBuffer body) {
+        final int recordSize = RECORD_HEADER_SIZE + body.remaining();
+        if (buffer != null) {
+            writeRecord(buffer, body);
+        }
+        return recordSize;
+    }
+
+    // recovery
+
+    private void recover() throws IOException {
+        final File[] files = dir.listFiles();
+        final List<File> segmentFiles = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith("segment-") && f.getName().endsWith(TEMP_EXTENSION)) {
+                    // unfinished compaction
+                    f.delete();
+                } else if (f.getName().startsWith("segment-") && f.getName().endsWith(SEGMENT_EXTENSION)) {
+                    segmentFiles.add(f);
+                }
+            }
+        }
+        segmentFiles.sort((a, b) -> a.getName().compareTo(b.getName()));
+        // the stored messages of each queue by their sequences
+        final Map<String, LinkedHashMap<Long, EnqueuedMessage>> recoveredQueues = new LinkedHashMap<>();
+        int lastReset = 0;
+        // whether the last segment has a valid header and was replayed up to the unwritten space
+        boolean lastComplete = false;
+        for (File f : segmentFiles) {
+            final long id = Long.parseLong(f.getName().substring(8, f.getName().length() - SEGMENT_EXTENSION.length()));
+            final Segment segment;
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                int used = 0;
+                lastComplete = false;
+                try {
+                    if (buffer.remaining() < FILE_HEADER_SIZE || buffer.getInt() != MAGIC
+                        || buffer.getInt() != FORMAT_VERSION) {
+                        LOG.warn("Segment {} has an invalid header", f);
+                    } else {
+                        lastComplete = true;
+                        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                            final int start = buffer.position();
+                            final int length = buffer.getInt();
+                            final int checksum = buffer.getInt();
+                            if (length == 0) {
+                                // end of the written records
+                                break;
+                            }
+                            if (length < 0 || length > buffer.remaining()) {
+                                LOG.warn("Torn record in segment {} at position {}", f, start);
+                                lastComplete = false;
+                                break;
+                            }
+                            final byte[] body = new byte[length];
+                            buffer.get(body);
+                            crc.reset();
+                            crc.update(body, 0, length);
+                            if ((int) crc.getValue() != checksum) {
+                                LOG.warn("Corrupted record in segment {} at position {}", f, start);
+                                lastComplete = false;
+                                break;
+                            }
+                            if (body[0] == RESET) {
+                                lastReset = segments.size();
+                            }
+                            apply(ByteBuffer.wrap(body), recoveredQueues);
+                            used = buffer.position() - FILE_HEADER_SIZE;
+                        }
+                    }
+                } finally {
+                    unmap(buffer);
+                }
+                segment = new Segment(id, f, used);
+            }
+            segments.add(segment);
+            totalBytes += segment.used;
+        }
+        // segments before the last snapshot were not deleted after the compaction
+        for (int i = 0; i < lastReset; i++) {
+            segments.get(i).file.delete();
+        }
+        if (lastReset > 0) {
+            segments.subList(0, lastReset).clear();
+        }
+        if (!segments.isEmpty()) {
+            current = segments.get(segments.size() - 1);
+            // a segment with an invalid header or with a torn record is not appended to, as the records written
+            // after the stale bytes would not be replayed. The next record rolls to a new segment.
+            if (segments.size() == 1 && lastComplete) {
+                reopenForAppend(current);
+            }
+        }
+        // the messages that were in flight are sent again
+        for (Map.Entry<String, LinkedHashMap<Long, EnqueuedMessage>> entry : recoveredQueues.entrySet()) {
+            final MappedPersistentQueue queue = new MappedPersistentQueue(this, entry.getKey());
+            for (Map.Entry<Long, EnqueuedMessage> stored : entry.getValue().entrySet()) {
+                queue.items.add(stored.getValue());
+                queue.sequences.put(stored.getValue(), stored.getKey());
+            }
+            queues.put(entry.getKey(), queue);
+        }
+        liveBytes = totalBytes;
+    }
+
+    private void reopenForAppend(Segment segment) throws IOException {
+        segment.raf = new RandomAccessFile(segment.file, "rw");
+        segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.raf.length());
+        segment.buffer.position(FILE_HEADER_SIZE + segment.used);
+    }
+
+    private void apply(ByteBuffer body, Map<String, LinkedHashMap<Long, EnqueuedMessage>> recoveredQueues) {
+        final byte type = body.get();
+        switch (type) {
+            case RESET:
+                recoveredQueues.clear();
+                subscriptions.clear();
+                break;
+            case QUEUE_CREATE:
+                recoveredQueues.computeIfAbsent(getString(body), k -> new LinkedHashMap<>());
+                break;
+            case ENQUEUE: {
+                final String clientId = getString(body);
+                final long sequence = body.getLong();
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                final EnqueuedMessage msg;
+                if (body.get() == KIND_PUBLISH) {
+                    final Topic topic = new Topic(getString(body));
+                    final MqttQoS qos = MqttQoS.valueOf(body.get());
+                    final byte[] payload = new byte[body.getInt()];
+                    body.get(payload);
+                    msg = new PublishedMessage(topic, qos, Unpooled.wrappedBuffer(payload));
+                } else {
+                    msg = new PubRelMarker();
+                }
+                recoveredQueues.computeIfAbsent(clientId, k -> new LinkedHashMap<>()).put(sequence, msg);
+                break;
+            }
+            case ACK: {
+                final LinkedHashMap<Long, EnqueuedMessage> queue = recoveredQueues.get(getString(body));
+                if (queue != null) {
+                    queue.remove(body.getLong());
+                }
+                break;
+            }
+            case DROP_QUEUE:
+                recoveredQueues.remove(getString(body));
+                break;
+            case SUBSCRIBE: {
+                final String clientId = getString(body);
+                final String topicFilter = getString(body);
+                final MqttQoS qos = MqttQoS.valueOf(body.get());
+                subscriptions.put(subscriptionKey(topicFilter, clientId),
+                                  new Subscription(clientId, new Topic(topicFilter), qos));
+                break;
+            }
+            case UNSUBSCRIBE: {
+                final String clientId = getString(body);
+                subscriptions.remove(subscriptionKey(getString(body), clientId));
+                break;
+            }
+            default:
+                LOG.warn("Unknown record type: {}", type);
+        }
+    }
+
+    /**
+     * Unmaps the buffer immediately (Java 9+). Otherwise the file stays mapped until the buffer is garbage collected,
+     * which prevents deleting it on Windows.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (Exception e) {
+            // not supported
+        }
+    }
+}
@@ -0,0 +1,89 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.broker.IAcknowledgedQueue;
+import io.moquette.broker.SessionRegistry.EnqueuedMessage;
+
+import java.util.AbstractQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Session queue that keeps its messages in memory and writes every change to the {@link MappedLogStore}.
+ * A message taken from the queue stays in the store until the client acknowledges it.
+ */
+class MappedPersistentQueue extends AbstractQueue<EnqueuedMessage> implements IAcknowledgedQueue {
+
+    final String name;
+    // messages that were not sent yet
+    final ConcurrentLinkedQueue<EnqueuedMessage> items = new ConcurrentLinkedQueue<>();
+    // store sequence of each stored message that was not acknowledged (queued or in flight). Guarded by the store.
+    final Map<EnqueuedMessage, Long> sequences = new IdentityHashMap<>();
+    // set when the queue is removed from the store (the client reconnected with a clean session)
+    volatile boolean dropped;
+    private final MappedLogStore store;
+
+    MappedPersistentQueue(MappedLogStore store, String name) {
+        this.store = store;
+        this.name = name;
+    }
+
+    @Override
+    public Iterator<EnqueuedMessage> iterator() {
+        return Collections.unmodifiableCollection(items).iterator();
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    @Override
+    public boolean offer(EnqueuedMessage t) {
+        if (t == null) {
+            throw new NullPointerException("Inserted element can't be null");
+        }
+        store.enqueue(this, t);
+        return true;
+    }
+
+    @Override
+    public EnqueuedMessage poll() {
+        // nothing is written until the message is acknowledged
+        return items.poll();
+    }
+
+    @Override
+    public void acknowledged(EnqueuedMessage msg) {
+        store.acknowledge(this, msg);
+    }
+
+    @Override
+    public EnqueuedMessage peek() {
+        return items.peek();
+    }
+}
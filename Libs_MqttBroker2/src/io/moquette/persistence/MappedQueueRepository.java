@@ -0,0 +1,55 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.broker.IQueueRepository;
+import io.moquette.broker.SessionRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class MappedQueueRepository implements IQueueRepository {
+
+    private final MappedLogStore store;
+
+    MappedQueueRepository(MappedLogStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Queue<SessionRegistry.EnqueuedMessage> createQueue(String cli, boolean clean) {
+        if (!clean) {
+            return store.openQueue(cli);
+        }
+        // a clean session discards the stored state
+        store.dropQueue(cli);
+        return new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public void dropQueue(String cli) {
+        store.dropQueue(cli);
+    }
+
+    @Override
+    public Map<String, Queue<SessionRegistry.EnqueuedMessage>> listPersistedQueues() {
+        return new LinkedHashMap<>(store.persistedQueues());
+    }
+}
@@ -0,0 +1,47 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.broker.ISubscriptionsRepository;
+import io.moquette.broker.subscriptions.Subscription;
+
+import java.util.List;
+
+public class MappedSubscriptionsRepository implements ISubscriptionsRepository {
+
+    private final MappedLogStore store;
+
+    MappedSubscriptionsRepository(MappedLogStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public List<Subscription> listAllSubscriptions() {
+        return store.listSubscriptions();
+    }
+
+    @Override
+    public void addNewSubscription(Subscription subscription) {
+        store.subscribe(subscription);
+    }
+
+    @Override
+    public void removeSubscription(String topicFilter, String clientID) {
+        store.unsubscribe(topicFilter, clientID);
+    }
+}
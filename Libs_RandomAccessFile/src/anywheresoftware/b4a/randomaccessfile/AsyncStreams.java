@@ -20,6 +20,7 @@ package anywheresoftware.b4a.randomaccessfile;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -63,6 +64,32 @@ public class AsyncStreams {
 	 * Sets the maximum size of the output queue. Must be set before the call to Initialize. Default value is 100.
 	 */
 	public int OutputQueueMaxSize = 100;
+	/**
+	 * Sets the size of the buffer that is used to merge queued messages into a single write. Only used in prefix mode.
+	 *Must be set before the call to Initialize. Default value is 65536.
+	 */
+	public int MaxBatchSize = 65536;
+	/**
+	 * Sets the time (measured in milliseconds) that the writer will wait for more messages before writing a partial batch.
+	 *Only used in prefix mode. Default value is 0 (messages that are already queued are merged without waiting).
+	 */
+	public int LingerTime = 0;
+	/**
+	 * Sets whether the reading and writing threads will be virtual threads. Must be set before the call to Initialize.
+	 *Virtual threads are much lighter than platform threads and are recommended when there are many connections. Requires Java 21+.
+	 *Default value is False unless the b4j.virtualthreads system property is set to true.
+	 */
+	public boolean UseVirtualThreads = System.getProperty("b4j.virtualthreads", "false").equals("true");
+	private static Method ofVirtual, unstarted;
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			//virtual threads are not supported.
+			ofVirtual = null;
+		}
+	}
 	/**
 	 * Initializes the object. Unlike in prefix mode, the NewData event will be raised with new data as soon as it is available.
 	 *In - The InputStream that will be read. Pass Null if you only want to write with this object.
@@ -106,17 +133,27 @@ public class AsyncStreams {
 		this.eventName = EventName.toLowerCase(BA.cul);
 		if (In != null) {
 			ain = new AIN(In, BigEndian, Prefix);
-			tin = new Thread(ain);
-			tin.setDaemon(true);
+			tin = createThread(ain);
 			tin.start();
 		}
 		if (Out != null) {
 			aout = new AOUT(Out, BigEndian, Prefix);
-			tout = new Thread(aout);
-			tout.setDaemon(true);
+			tout = createThread(aout);
 			tout.start();
 		}
 	}
+	private Thread createThread(Runnable runnable) {
+		if (UseVirtualThreads && ofVirtual != null) {
+			try {
+				return (Thread) unstarted.invoke(ofVirtual.invoke(null), runnable);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Thread t = new Thread(runnable);
+		t.setDaemon(true);
+		return t;
+	}
 	/**
 	 * Tests whether this object has been initialized.
 	 */
@@ -171,6 +208,27 @@ public class AsyncStreams {
 			return 0;
 		return aout.queue.size();
 	}
+	/**
+	 * Returns the number of bytes written to the output stream, including the prefix bytes.
+	 */
+	public long getBytesWritten() {
+		AOUT a = aout;
+		return a == null ? 0 : a.bytesWritten;
+	}
+	/**
+	 * Returns the number of messages written to the output stream.
+	 */
+	public long getMessagesWritten() {
+		AOUT a = aout;
+		return a == null ? 0 : a.messagesWritten;
+	}
+	/**
+	 * Returns the number of write calls made to the output stream. In prefix mode several messages can be written in a single batch.
+	 */
+	public long getBatchesWritten() {
+		AOUT a = aout;
+		return a == null ? 0 : a.batchesWritten;
+	}
 	/**
 	 * Closes the associated streams.
 	 */
@@ -357,6 +415,11 @@ public class AsyncStreams {
 		private final boolean prefix;
 		private final ByteBuffer bb;
 		private byte[] streamBuffer;
+		private final byte[] batch;
+		private int batchPosition;
+		//item that was taken from the queue while collecting a batch and was not handled yet.
+		private Object pending;
+		volatile long bytesWritten, messagesWritten, batchesWritten;
 
 		public AOUT (OutputStream out, boolean bigEndian, boolean prefix) {
 			this.queue  = new ArrayBlockingQueue<Object>(AsyncStreams.this.OutputQueueMaxSize);
@@ -365,21 +428,37 @@ public class AsyncStreams {
 			if (prefix) {
 				bb = ByteBuffer.wrap(new byte[8]);
 				bb.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+				batch = new byte[Math.max(16, AsyncStreams.this.MaxBatchSize)];
 			}
-			else
+			else {
 				bb = null;
+				batch = null;
+			}
 		}
 		public void run() {
 			while (working) {
 				try {
-					Object b = queue.take();
+					Object b = pending;
+					if (b != null)
+						pending = null;
+					else
+						b = queue.take();
 					if (b instanceof byte[]) {
 						if (b == CLOSE_PILL) {
 							ba.raiseEventFromDifferentThread(AsyncStreams.this, null, 0, eventName + "_terminated", false, null);
 							AsyncStreams.this.Close(); //close both threads
 							return;
 						}
-						out.write((byte[])b);
+						if (prefix) {
+							writeBatch((byte[])b);
+						}
+						else {
+							byte[] data = (byte[])b;
+							out.write(data);
+							bytesWritten += data.length;
+							messagesWritten++;
+							batchesWritten++;
+						}
 					}
 					else {
 						StreamAndSize st = (StreamAndSize)b;
@@ -413,6 +492,7 @@ public class AsyncStreams {
 						}
 					}
 				} catch (Exception e) {
+					batchPosition = 0;
 					if (working) {
 						e.printStackTrace();
 						ba.setLastException(e);
@@ -422,6 +502,53 @@ public class AsyncStreams {
 			}
 		}
 
+		/**
+		 * Writes the message and any other messages that are waiting in the queue with a minimal number of write calls.
+		 */
+		private void writeBatch(byte[] data) throws IOException, InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AsyncStreams.this.LingerTime);
+			while (true) {
+				synchronized (bb) {
+					bb.putInt(0, data.length);
+					append(bb.array(), 0, 4);
+				}
+				append(data, 0, data.length);
+				messagesWritten++;
+				Object next = queue.poll();
+				if (next == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining > 0 && batchPosition > 0)
+						next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				}
+				if (next == null)
+					break;
+				if (next == CLOSE_PILL || next instanceof byte[] == false) {
+					pending = next;
+					break;
+				}
+				data = (byte[])next;
+			}
+			flushBatch();
+		}
+		private void append(byte[] b, int start, int len) throws IOException {
+			while (len > 0) {
+				int count = Math.min(len, batch.length - batchPosition);
+				System.arraycopy(b, start, batch, batchPosition, count);
+				batchPosition += count;
+				start += count;
+				len -= count;
+				if (batchPosition == batch.length)
+					flushBatch();
+			}
+		}
+		private void flushBatch() throws IOException {
+			if (batchPosition == 0)
+				return;
+			out.write(batch, 0, batchPosition);
+			bytesWritten += batchPosition;
+			batchesWritten++;
+			batchPosition = 0;
+		}
 		public boolean put(InputStream in, long size) {
 			if (!prefix)
 				throw new RuntimeException("WriteStream is only supported in prefix mode.");
@@ -439,18 +566,9 @@ public class AsyncStreams {
 			if (buffer == CLOSE_PILL)
 				b = CLOSE_PILL;
 			else {
-				if (!prefix) {
-					b = new byte[len];
-					System.arraycopy(buffer, start, b, 0, len);
-				}
-				else {
-					b = new byte[len + 4];
-					synchronized (bb) {
-						bb.putInt(0, len);
-						System.arraycopy(bb.array(), 0, b, 0, 4);
-					}
-					System.arraycopy(buffer, start, b, 4, len);
-				}
+				//in prefix mode the length is added by the writer thread.
+				b = new byte[len];
+				System.arraycopy(buffer, start, b, 0, len);
 			}
 			try {
 				return queue.offer(b, 100, TimeUnit.MILLISECONDS);
@@ -17,6 +17,8 @@
  
  package anywheresoftware.b4a.randomaccessfile;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -25,12 +27,16 @@ import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -49,14 +55,25 @@ import anywheresoftware.b4a.objects.collections.Map.MyMap;
 public class B4XSerializator {
 	private OutputStream out;
 	private DataInputStream in;
+	private DataInputStream streamIn;
 	private ByteBuffer bb;
 	private Object tag;
 	private final static byte T_NULL = 0, T_STRING = 1, T_SHORT = 2, T_INT = 3, T_LONG = 4, T_FLOAT = 5,
 	T_DOUBLE = 6, T_BOOLEAN = 7, T_BYTE = 10, T_CHAR = 14, T_MAP = 20, T_LIST = 21,
-	T_NSARRAY = 22, T_NSDATA = 23, T_TYPE = 24;
-	//	private HashMap<String, Short> stringsCacheMap;
-	//	private ArrayList<String> stringsCache;
-	//	private final static int maxLengthForStringsCache = 200;
+	T_NSARRAY = 22, T_NSDATA = 23, T_TYPE = 24, T_CACHED_STRING = 30, T_CACHED_STRING_ADD = 31;
+	//the first byte of the compact format. A zlib stream can never start with this value.
+	private final static byte COMPACT_HEADER = (byte)0xB4;
+	private final static byte FLAG_COMPRESSED = 1;
+	private HashMap<String, Short> stringsCacheMap;
+	private ArrayList<String> stringsCache;
+	private final static int maxLengthForStringsCache = 200;
+	private final static int maxBufferSizeToKeep = 1024 * 1024;
+	//accessible fields of types, shared by all instances.
+	private static final ConcurrentHashMap<Class<?>, Field[]> typesFields = new ConcurrentHashMap<Class<?>, Field[]>();
+	private boolean compactFormat;
+	private int compressionThreshold = 1024;
+	private ExposedByteArrayOutputStream buffer;
+	private Deflater deflater;
 	public B4XSerializator() {
 		bb = ByteBuffer.wrap(new byte[8]);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
@@ -70,6 +87,28 @@ public class B4XSerializator {
 	public Object getTag() {
 		return tag;
 	}
+	/**
+	 * Gets or sets whether to use the compact format. The compact format compresses the data only if it is larger than CompressionThreshold
+	 *and writes repeating strings (including the types names) only once.
+	 *The data can only be read by B4XSerializator versions that support this format. Both formats are always supported when reading.
+	 *Default value is False.
+	 */
+	public boolean getCompactFormat() {
+		return compactFormat;
+	}
+	public void setCompactFormat(boolean b) {
+		compactFormat = b;
+	}
+	/**
+	 * Gets or sets the minimum size (in bytes) of data that will be compressed when CompactFormat is True.
+	 *Set to -1 to disable compression. Default value is 1024.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	public void setCompressionThreshold(int i) {
+		compressionThreshold = i;
+	}
 	/**
 	 * In-memory version of RandomAccessFile.WriteB4XObject.
 	 *The following types are supported: Lists, Arrays of bytes and Arrays of objects, Maps, Strings, primitive types and user defined types.
@@ -98,6 +137,64 @@ public class B4XSerializator {
 	public Object ConvertBytesToObject(byte[] Bytes) throws IOException {
 		return ReadObject(Bytes);
 	}
+	/**
+	 * Writes the object to the stream without holding the serialized data in memory.
+	 *The object is written in the compact format, without compression. The stream is flushed but not closed.
+	 *Multiple objects can be written to the same stream. They can be read with ReadObjectFromStream or with StartReading and ReadNext.
+	 */
+	public void WriteObjectToStream(OutputStream Out, Object Object) throws IOException {
+		BufferedOutputStream bout = new BufferedOutputStream(Out);
+		out = bout;
+		resetStringsCacheMap();
+		writeByte(COMPACT_HEADER);
+		writeByte((byte)0);
+		writeObject(Object);
+		bout.flush();
+	}
+	/**
+	 * Reads a single object written with WriteObjectToStream. Only the bytes of this object are read from the stream.
+	 *Use StartReading and ReadNext when reading many objects from the same stream.
+	 */
+	public Object ReadObjectFromStream(InputStream In) throws IOException {
+		return readFromStream(new DataInputStream(In));
+	}
+	/**
+	 * Starts reading a sequence of objects written with WriteObjectToStream.
+	 *The stream is buffered internally so it should not be read directly after this call.
+	 *Example:<code>
+	 *ser.StartReading(In)
+	 *Do While ser.HasNext
+	 *	Dim m As Map = ser.ReadNext
+	 *Loop
+	 *In.Close</code>
+	 */
+	public void StartReading(InputStream In) {
+		streamIn = new DataInputStream(new BufferedInputStream(In));
+	}
+	/**
+	 * Returns True if there are more objects in the stream passed to StartReading.
+	 */
+	public boolean HasNext() throws IOException {
+		streamIn.mark(1);
+		int b = streamIn.read();
+		streamIn.reset();
+		return b != -1;
+	}
+	/**
+	 * Reads the next object from the stream passed to StartReading.
+	 */
+	public Object ReadNext() throws IOException {
+		return readFromStream(streamIn);
+	}
+	private Object readFromStream(DataInputStream din) throws IOException {
+		in = din;
+		byte header = readByte();
+		byte flags = readByte();
+		if (header != COMPACT_HEADER || (flags & FLAG_COMPRESSED) != 0)
+			throw new IOException("Unsupported format. The object should be written with WriteObjectToStream.");
+		resetStringsCache();
+		return readObject();
+	}
 	/**
 	 * Asynchronously converts the bytes to object. The BytesToObject event will be raised when the object is ready.
 	 *Do not reuse the same B4XSerializator instance when calling asynchronous methods.   
@@ -115,21 +212,69 @@ public class B4XSerializator {
 	
 	@Hide
 	public byte[] WriteObject(Object Object) throws IOException {
-		//		stringsCacheMap = new HashMap<String, Short>();
+		if (compactFormat)
+			return writeCompact(Object);
+		stringsCacheMap = null;
 		ByteArrayOutputStream bout = new ByteArrayOutputStream();
 		out = new DeflaterOutputStream(bout);
 		writeObject(Object);
 		out.close();
 		return bout.toByteArray();
 	}
+	private byte[] writeCompact(Object Object) throws IOException {
+		if (buffer == null || buffer.getBuffer().length > maxBufferSizeToKeep)
+			buffer = new ExposedByteArrayOutputStream();
+		else
+			buffer.reset();
+		resetStringsCacheMap();
+		out = buffer;
+		writeByte(COMPACT_HEADER);
+		writeByte((byte)0);
+		writeObject(Object);
+		int size = buffer.size();
+		if (compressionThreshold < 0 || size - 2 < compressionThreshold)
+			return buffer.toByteArray();
+		if (deflater == null)
+			deflater = new Deflater();
+		else
+			deflater.reset();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(size / 2 + 16);
+		bout.write(COMPACT_HEADER);
+		bout.write(FLAG_COMPRESSED);
+		DeflaterOutputStream dout = new DeflaterOutputStream(bout, deflater);
+		dout.write(buffer.getBuffer(), 2, size - 2);
+		dout.finish();
+		return bout.toByteArray();
+	}
 	@Hide
 	public Object ReadObject(byte[] arr) throws IOException {
-		//		stringsCache = new ArrayList<String>();
-		in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(arr)));
+		InputStream bin;
+		if (arr.length >= 2 && arr[0] == COMPACT_HEADER) {
+			bin = new ByteArrayInputStream(arr, 2, arr.length - 2);
+			if ((arr[1] & FLAG_COMPRESSED) != 0)
+				bin = new InflaterInputStream(bin);
+			resetStringsCache();
+		}
+		else {
+			bin = new InflaterInputStream(new ByteArrayInputStream(arr));
+		}
+		in = new DataInputStream(bin);
 		Object ret = readObject();
 		in.close();
 		return ret;
 	}
+	private void resetStringsCacheMap() {
+		if (stringsCacheMap == null)
+			stringsCacheMap = new HashMap<String, Short>();
+		else
+			stringsCacheMap.clear();
+	}
+	private void resetStringsCache() {
+		if (stringsCache == null)
+			stringsCache = new ArrayList<String>();
+		else
+			stringsCache.clear();
+	}
 	private void writeInt(int i) throws IOException {
 		bb.putInt(0, i);
 		out.write(bb.array(), 0, 4);
@@ -192,30 +337,7 @@ public class B4XSerializator {
 			boolean b = (Boolean)o;
 			writeByte((byte)(b ? 1 : 0));
 		} else if (o instanceof String) {
-			//String st = (String)o;
-			//			Short s = null;
-			//			if (st.length() < maxLengthForStringsCache) {
-			//				s = stringsCacheMap.get(st);
-			//			}
-			//			if (s != null) {
-			//				writeByte(T_CACHED_STRING);
-			//				writeShort(s);
-			//			}
-			//			else {
-			byte[] temp = ((String)o).getBytes("UTF8");
-			//				if (st.length() < maxLengthForStringsCache && stringsCacheMap.size() < Short.MAX_VALUE) {
-			//					short pos = (short) stringsCacheMap.size();
-			//					stringsCacheMap.put((String)o, pos);
-			//					writeByte(T_CACHED_STRING_ADD);
-			//					writeShort((short) temp.length);
-			//				}
-			//				else {
-			writeByte(T_STRING);
-			writeInt(temp.length);
-			//				}
-			out.write(temp);
-			//			}
-
+			writeString((String)o);
 		} else if (o instanceof List) {
 			writeByte(T_LIST);
 			writeList((List<?>)o);
@@ -241,6 +363,31 @@ public class B4XSerializator {
 			writeType(o);
 		}
 	}
+	private void writeString(String st) throws IOException {
+		Short s = null;
+		boolean cache = stringsCacheMap != null && st.length() < maxLengthForStringsCache;
+		if (cache) {
+			s = stringsCacheMap.get(st);
+		}
+		if (s != null) {
+			writeByte(T_CACHED_STRING);
+			writeShort(s);
+		}
+		else {
+			byte[] temp = st.getBytes("UTF8");
+			if (cache && stringsCacheMap.size() < Short.MAX_VALUE) {
+				short pos = (short) stringsCacheMap.size();
+				stringsCacheMap.put(st, pos);
+				writeByte(T_CACHED_STRING_ADD);
+				writeShort((short) temp.length);
+			}
+			else {
+				writeByte(T_STRING);
+				writeInt(temp.length);
+			}
+			out.write(temp);
+		}
+	}
 	private Map<?,?> readMap() throws IOException {
 		int len = readInt();
 		MyMap mm = new MyMap();
@@ -269,18 +416,31 @@ public class B4XSerializator {
 			writeObject(o);
 		}
 	}
+	private static Field[] getTypeFields(Class<?> c) {
+		Field[] fields = typesFields.get(c);
+		if (fields == null) {
+			fields = c.getDeclaredFields();
+			for (Field f : fields)
+				f.setAccessible(true);
+			typesFields.put(c, fields);
+		}
+		return fields;
+	}
 	private void writeType(Object target) throws IOException {
-		Field[] fields = RandomAccessFile.isB4XType(target);
-		if (fields == null)
-			throw new RuntimeException("Cannot serialize object: " + String.valueOf(target));
+		Field[] fields = typesFields.get(target.getClass());
+		if (fields == null) {
+			if (RandomAccessFile.isB4XType(target) == null)
+				throw new RuntimeException("Cannot serialize object: " + String.valueOf(target));
+			fields = getTypeFields(target.getClass());
+		}
 		try {
 			writeObject(target.getClass().getName());
-			MyMap map = new MyMap();
+			//same as writing a map of the fields names and values.
+			writeInt(fields.length);
 			for (Field f : fields) {
-				f.setAccessible(true);
-				map.put(f.getName(), f.get(target));
+				writeObject(f.getName());
+				writeObject(f.get(target));
 			}
-			writeMap(map);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -291,12 +451,11 @@ public class B4XSerializator {
 			Class<?> c = RandomAccessFile.readTypeClass(cls);
 			MyMap map = (MyMap) readMap();
 			Object o = c.newInstance();
-			for (Field f : c.getDeclaredFields()) {
+			for (Field f : getTypeFields(c)) {
 				Object val = map.get(f.getName());
 				if (val == null)
 					val = map.get("_" + f.getName());
 				if (val != null) {
-					f.setAccessible(true);
 					if (f.getType() == anywheresoftware.b4a.objects.collections.List.class) {
 						val = AbsObjectWrapper.ConvertToWrapper(new anywheresoftware.b4a.objects.collections.List(), val);
 					}
@@ -343,18 +502,18 @@ public class B4XSerializator {
 			b = new byte[len];
 			in.readFully(b);
 			return new String(b, "UTF8");
-//		case T_CACHED_STRING: {
-//			short s = readShort();
-//			return stringsCache.get(s);
-//		}
-//		case T_CACHED_STRING_ADD: {
-//			len = readShort();
-//			byte[] buffer = new byte[len];
-//			in.readFully(buffer);
-//			String s = new String(buffer, "UTF8");
-//			stringsCache.add(s);
-//			return s;
-//		}
+		case T_CACHED_STRING: {
+			short s = readShort();
+			return stringsCache.get(s);
+		}
+		case T_CACHED_STRING_ADD: {
+			len = readShort();
+			byte[] buffer = new byte[len];
+			in.readFully(buffer);
+			String s = new String(buffer, "UTF8");
+			stringsCache.add(s);
+			return s;
+		}
 		case T_CHAR:
 			in.readFully(bb.array(), 0, 2);
 			return bb.getChar(0);
@@ -376,5 +535,10 @@ public class B4XSerializator {
 		throw new RuntimeException("Unsupported type: " + t);
 
 	}
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
 
 }
@@ -24,12 +24,16 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -42,9 +46,10 @@ import anywheresoftware.b4a.BA.ShortName;
 import anywheresoftware.b4a.BA.Version;
 import anywheresoftware.b4a.objects.collections.List;
 
-@Version(1.61f)
+@Version(1.62f)
 @Events(values={"QueryComplete (Success As Boolean, Crsr As ResultSet)",
-		"NonQueryComplete (Success As Boolean)", "Ready (Success As Boolean)"})
+		"NonQueryComplete (Success As Boolean)", "Ready (Success As Boolean)",
+		"QueryChunk (Success As Boolean, Rows As List, Completed As Boolean)"})
 @ShortName("SQL")
 public class SQL implements CheckForReinitialize{
 	@Hide
@@ -54,6 +59,9 @@ public class SQL implements CheckForReinitialize{
 	@Hide
 	public ReentrantLock sqliteLock;
 	private volatile ArrayList<Object[]> nonQueryStatementsList = new ArrayList<Object[]>();
+	private volatile StatementsCache statementsCache;
+	private int batchSize = 1000;
+	private int fetchSize;
 
 	/**
 	 * Initializes the SQL object. You also need to add the JDBC driver jar to your project with the #AdditionalJar attribute.
@@ -73,12 +81,18 @@ public class SQL implements CheckForReinitialize{
 			throw new RuntimeException("Class not found: " + DriverClass + "\nAre you missing an #AdditionalJar attribute setting?");
 		}
 		connection = DriverManager.getConnection(JdbcUrl, UserName, Password);
+		StatementsCache c = statementsCache;
+		if (c != null)
+			setStatementCacheSize(c.maxSize);
 	}
 	private static SQL cloneMe(SQL sql) {
 		SQL ret = new SQL();
 		ret.connection = sql.connection;
 		ret.nonQueryStatementsList = sql.nonQueryStatementsList;
 		ret.sqliteLock = sql.sqliteLock;
+		ret.statementsCache = sql.statementsCache;
+		ret.batchSize = sql.batchSize;
+		ret.fetchSize = sql.fetchSize;
 		return ret;
 	}
 	/**
@@ -213,23 +227,72 @@ public class SQL implements CheckForReinitialize{
 	 *SQL1.ExecNonQuery2("INSERT INTO table1 VALUES (?, ?, 0)", Array As Object("some text", 2))</code>
 	 */
 	public void ExecNonQuery2(String Statement, List Args) throws SQLException {
-		PreparedStatement ps = connection.prepareStatement(Statement);
+		PreparedStatement ps = prepareStatement(Statement);
+		boolean success = false;
 		try {
-			int numArgs = Args.IsInitialized() == false ? 0 : Args.getSize();
-			for (int i = 0; i < numArgs; i++) {
-				ps.setObject(i + 1, Args.Get(i));
-			}
+			setArgs(ps, Args);
 			startLock();
 			ps.execute();
+			success = true;
 		} finally {
 			try {
-				ps.close();
+				releaseStatement(Statement, ps, success);
 			}
 			finally {
 				releaseLock();
 			}
 		}
 	}
+	private static void setArgs(PreparedStatement ps, List Args) throws SQLException {
+		int numArgs = Args == null || Args.IsInitialized() == false ? 0 : Args.getSize();
+		for (int i = 0; i < numArgs; i++) {
+			ps.setObject(i + 1, Args.Get(i));
+		}
+	}
+	private PreparedStatement prepareStatement(String Statement) throws SQLException {
+		StatementsCache c = statementsCache;
+		if (c != null && c.connection == connection) {
+			PreparedStatement ps = c.take(Statement);
+			if (ps != null)
+				return ps;
+		}
+		return connection.prepareStatement(Statement);
+	}
+	//returns the statement to the cache, or closes it if it cannot be reused.
+	private void releaseStatement(String Statement, PreparedStatement ps, boolean success) throws SQLException {
+		StatementsCache c = statementsCache;
+		if (success && c != null && c.connection == connection)
+			c.release(Statement, ps);
+		else
+			ps.close();
+	}
+	/**
+	 * Gets or sets the number of prepared statements that are cached and reused.
+	 *The statements are cached per connection and are identified by the SQL text.
+	 *This can significantly improve the performance when the same statements are executed many times with ExecNonQuery2, ExecQuery2 and the batch methods.
+	 *Should be set after the connection is initialized. Default value is 0 (no caching).
+	 */
+	public int getStatementCacheSize() {
+		StatementsCache c = statementsCache;
+		return c == null ? 0 : c.maxSize;
+	}
+	public void setStatementCacheSize(int i) {
+		checkNull();
+		StatementsCache old = statementsCache;
+		statementsCache = i > 0 ? new StatementsCache(connection, i) : null;
+		if (old != null)
+			old.closeAll();
+	}
+	/**
+	 * Gets or sets the maximum number of consecutive identical statements that are sent together as a single JDBC batch
+	 *by ExecNonQueryBatch and ExecNonQueryBatch2. Default value is 1000.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int i) {
+		batchSize = Math.max(1, i);
+	}
 	/**
 	 * Adds a non-query statement to the batch of statements.
 	 *The statements are (asynchronously) executed when you call ExecNonQueryBatch.
@@ -269,44 +332,11 @@ public class SQL implements CheckForReinitialize{
 			public void run() {
 				synchronized (connection) {
 					try {
-						BeginTransaction();
-						HashMap<String, PreparedStatement> cachedPS = new HashMap<String, PreparedStatement>();
-						try {
-							
-							for (Object[] o: myList) {
-								String Statement = (String)o[0];
-								List Args = (List)o[1];
-								PreparedStatement ps = cachedPS.get(Statement);
-								if (ps == null) {
-									ps = connection.prepareStatement(Statement);
-									cachedPS.put(Statement, ps);
-								}
-								int numArgs = Args.IsInitialized() == false ? 0 : Args.getSize();
-								for (int i = 0; i < numArgs; i++) {
-									ps.setObject(i + 1, Args.Get(i));
-								}
-								ps.execute();
-
-							}
-						} finally {
-							for (PreparedStatement ps : cachedPS.values()) {
-								try {
-									ps.close();
-								} catch (Exception pse) {
-									pse.printStackTrace();
-								}
-							}
-						}
-						TransactionSuccessful();
+						executeBatch(myList);
 						ba.raiseEventFromDifferentThread(ret, null, 0, EventName.toLowerCase(BA.cul) + "_nonquerycomplete",
 								true, new Object[] {true});
 					} catch (Exception e) {
 						e.printStackTrace();
-						try {
-							Rollback();
-						} catch (SQLException e1) {
-							e1.printStackTrace();
-						}
 						ba.setLastException(e);
 						ba.raiseEventFromDifferentThread(ret, null, 0, EventName.toLowerCase(BA.cul) + "_nonquerycomplete",
 								true, new Object[] {false});
@@ -317,6 +347,75 @@ public class SQL implements CheckForReinitialize{
 		}, null, 0);
 		return ret;
 	}
+	/**
+	 * Synchronously executes the batch of non-query statements that were added with AddNonQueryToBatch.
+	 *The statements are executed in a single transaction. If an error occurs then the transaction is rolled back and the error is thrown.
+	 *Example:<code>
+	 *For i = 1 To 1000
+	 *	sql.AddNonQueryToBatch("INSERT INTO table1 VALUES (?)", Array(Rnd(0, 100000)))
+	 *Next
+	 *sql.ExecNonQueryBatch2</code>
+	 */
+	public void ExecNonQueryBatch2() throws SQLException {
+		checkNull();
+		ArrayList<Object[]> myList = nonQueryStatementsList;
+		nonQueryStatementsList = new ArrayList<Object[]>();
+		synchronized (connection) {
+			executeBatch(myList);
+		}
+	}
+	//consecutive identical statements are executed as JDBC batches.
+	private void executeBatch(ArrayList<Object[]> myList) throws SQLException {
+		BeginTransaction();
+		try {
+			String currentStatement = null;
+			PreparedStatement ps = null;
+			boolean success = false;
+			try {
+				int count = 0;
+				for (Object[] o: myList) {
+					String Statement = (String)o[0];
+					if (ps == null || Statement.equals(currentStatement) == false) {
+						if (ps != null) {
+							if (count > 0)
+								ps.executeBatch();
+							PreparedStatement previous = ps;
+							ps = null;
+							releaseStatement(currentStatement, previous, true);
+						}
+						ps = prepareStatement(Statement);
+						currentStatement = Statement;
+						count = 0;
+					}
+					setArgs(ps, (List)o[1]);
+					ps.addBatch();
+					if (++count >= batchSize) {
+						ps.executeBatch();
+						count = 0;
+					}
+				}
+				if (ps != null && count > 0)
+					ps.executeBatch();
+				success = true;
+			} finally {
+				if (ps != null) {
+					try {
+						releaseStatement(currentStatement, ps, success);
+					} catch (Exception pse) {
+						pse.printStackTrace();
+					}
+				}
+			}
+			TransactionSuccessful();
+		} catch (SQLException | RuntimeException e) {
+			try {
+				Rollback();
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+			}
+			throw e;
+		}
+	}
 
 	/**
 	 * Asynchronously executes the given query. The QueryComplete event will be raised when the results are ready.
@@ -355,6 +454,99 @@ public class SQL implements CheckForReinitialize{
 		return ret;
 	}
 
+	/**
+	 * Asynchronously executes the given query and raises the QueryChunk event for each chunk of rows.
+	 *Each row is an array of objects. Integer columns are returned as Int or Long, floating point columns as Double, binary columns as bytes arrays
+	 *and other columns as strings.
+	 *The next chunk is only raised after the previous event was handled, so the memory usage is bounded even with very large results.
+	 *Note that the Rows list is reused. Don't keep a reference to the list itself (the row arrays can be kept).
+	 *Completed parameter will be True in the last chunk. If an error occurs then the event is raised with Success = False.
+	 *Set FetchSize to make the driver stream the results.
+	 *Example:<code>
+	 *Dim SenderFilter As Object = sql.ExecQueryChunksAsync("SQL", "SELECT * FROM table1", Null, 1000)
+	 *Do While True
+	 *	Wait For (SenderFilter) SQL_QueryChunk (Success As Boolean, Rows As List, Completed As Boolean)
+	 *	If Success = False Then
+	 *		Log(LastException)
+	 *		Exit
+	 *	End If
+	 *	For Each row() As Object In Rows
+	 *		Log(row(0))
+	 *	Next
+	 *	If Completed Then Exit
+	 *Loop</code>
+	 */
+	public Object ExecQueryChunksAsync(final BA ba, final String EventName, final String Query, final List Args, final int ChunkSize) {
+		final SQL ret = SQL.cloneMe(this);
+		final String eventName = EventName.toLowerCase(BA.cul) + "_querychunk";
+		BA.submitRunnable(new Runnable() {
+
+			@Override
+			public void run() {
+				final Semaphore eventHandled = new Semaphore(1);
+				//two lists are used alternately. One is filled while the other is handled.
+				List[] buffers = new List[] {new List(), new List()};
+				buffers[0].Initialize();
+				buffers[1].Initialize();
+				int current = 0;
+				ResultSetWrapper rs = null;
+				try {
+					rs = ExecQuery2(Query, Args);
+					while (true) {
+						List rows = buffers[current];
+						current = 1 - current;
+						int count = rs.ReadRows(rows, ChunkSize);
+						boolean completed = count < ChunkSize;
+						eventHandled.acquire();
+						raiseChunkEvent(ba, ret, eventName, eventHandled, new Object[] {true, rows, completed});
+						if (completed)
+							break;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					ba.setLastException(e);
+					List empty = new List();
+					empty.Initialize();
+					raiseChunkEvent(ba, ret, eventName, null, new Object[] {false, empty, true});
+				} finally {
+					if (rs != null) {
+						try {
+							rs.Close();
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+
+		}, null, 0);
+		return ret;
+	}
+	private static void raiseChunkEvent(final BA ba, final Object sender, final String eventName, final Semaphore eventHandled, final Object[] params) {
+		ba.postRunnable(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ba.raiseEvent2(sender, false, eventName, false, params);
+				} finally {
+					if (eventHandled != null)
+						eventHandled.release();
+				}
+			}
+		});
+	}
+	/**
+	 * Gets or sets the number of rows that the driver fetches from the database in each round trip.
+	 *Use it with large results to avoid loading the complete result into memory. Note that MySQL requires a value of -2147483648 to stream the results.
+	 *Default value is 0, which means that the driver default is used.
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+	public void setFetchSize(int i) {
+		fetchSize = i;
+	}
 	/**
 	 * Executes the query and returns a cursor which is used to go over the results.
 	 *Example:<code>
@@ -379,15 +571,23 @@ public class SQL implements CheckForReinitialize{
 	 */
 	public ResultSetWrapper ExecQuery2(String Query, List Args) throws SQLException {
 		checkNull();
-		PreparedStatement ps = connection.prepareStatement(Query);
-		if (Args != null && Args.IsInitialized()) {
-			for (int i = 0;i < Args.getSize();i++) {
-				ps.setObject(i + 1, Args.Get(i));
-			}
+		PreparedStatement ps = prepareStatement(Query);
+		ResultSet r;
+		try {
+			setArgs(ps, Args);
+			if (fetchSize != 0)
+				ps.setFetchSize(fetchSize);
+			r = ps.executeQuery();
+		} catch (SQLException | RuntimeException e) {
+			ps.close();
+			throw e;
 		}
 		ResultSetWrapper rs = new ResultSetWrapper();
-		rs.setObject(ps.executeQuery());
-		ResultSetWrapper.closePS.put(rs.getObject(), ps);
+		rs.setObject(r);
+		StatementsCache c = statementsCache;
+		if (c != null && c.connection == connection)
+			ResultSetWrapper.cachedPS.put(r, new Object[] {c, Query});
+		ResultSetWrapper.closePS.put(r, ps);
 		return rs;
 	}
 	/**
@@ -500,6 +700,9 @@ public class SQL implements CheckForReinitialize{
 	public void Close() throws SQLException {
 		if (sqliteLock != null && sqliteLock.isHeldByCurrentThread())
 			releaseLock();
+		StatementsCache c = statementsCache;
+		if (c != null)
+			c.closeAll();
 		if (connection != null && connection.isClosed() == false)
 			connection.close();
 	}
@@ -509,6 +712,19 @@ public class SQL implements CheckForReinitialize{
 	public static class ResultSetWrapper extends AbsObjectWrapper<ResultSet> {
 		@Hide
 		public static final ConcurrentHashMap<ResultSet, Statement> closePS = new ConcurrentHashMap<ResultSet, Statement>();
+		//statements that should be returned to the cache when the result set is closed: {StatementsCache, SQL text}
+		static final ConcurrentHashMap<ResultSet, Object[]> cachedPS = new ConcurrentHashMap<ResultSet, Object[]>();
+		//resolved once, when ReadRows or GetColumnIndex are first called.
+		private int[] columnTypes;
+		private HashMap<String, Integer> columnIndexes;
+		@Hide
+		@Override
+		public void setObject(ResultSet object) {
+			//the cached columns belong to the previous result set.
+			columnTypes = null;
+			columnIndexes = null;
+			super.setObject(object);
+		}
 		/**
 		 * Moves the cursor to the next result. Returns false when the cursor reaches the end.
 		 *Example:<code>
@@ -622,18 +838,163 @@ public class SQL implements CheckForReinitialize{
 		public byte[] GetBlob2(int Index) throws SQLException {
 			return getObject().getBytes(Index + 1);
 		}
+		/**
+		 * Reads the next rows and adds them to the given list. Each row is an array of objects.
+		 *The list is cleared before the rows are added. It will be initialized if needed.
+		 *Returns the number of rows read. It will be lower than MaxRows when the cursor reaches the end.
+		 *Reusing the same list when going over large results reduces the memory allocations.
+		 *Example:<code>
+		 *Dim Rows As List
+		 *Do While rs.ReadRows(Rows, 1000) > 0
+		 *	For Each row() As Object In Rows
+		 *		Log(row(0))
+		 *	Next
+		 *Loop</code>
+		 */
+		public int ReadRows(List Rows, int MaxRows) throws SQLException {
+			if (Rows.IsInitialized() == false)
+				Rows.Initialize();
+			else
+				Rows.Clear();
+			ResultSet r = getObject();
+			int[] types = getColumnTypes();
+			java.util.List<Object> list = Rows.getObject();
+			int count = 0;
+			while (count < MaxRows && r.next()) {
+				Object[] row = new Object[types.length];
+				for (int i = 0;i < types.length;i++) {
+					row[i] = readColumn(r, i + 1, types[i]);
+				}
+				list.add(row);
+				count++;
+			}
+			return count;
+		}
+		/**
+		 * Returns the index of the column with the given name (case insensitive). Returns -1 if there is no such column.
+		 *The indexes are resolved once. Use it together with the Get methods that expect an index, when going over many rows.
+		 */
+		public int GetColumnIndex(String ColumnName) throws SQLException {
+			if (columnIndexes == null) {
+				ResultSetMetaData md = getObject().getMetaData();
+				HashMap<String, Integer> m = new HashMap<String, Integer>();
+				for (int i = md.getColumnCount();i >= 1;i--) {
+					m.put(md.getColumnLabel(i).toLowerCase(BA.cul), i - 1);
+				}
+				columnIndexes = m;
+			}
+			Integer i = columnIndexes.get(ColumnName.toLowerCase(BA.cul));
+			return i == null ? -1 : i;
+		}
+		private int[] getColumnTypes() throws SQLException {
+			if (columnTypes == null) {
+				ResultSetMetaData md = getObject().getMetaData();
+				int[] types = new int[md.getColumnCount()];
+				for (int i = 0;i < types.length;i++) {
+					types[i] = md.getColumnType(i + 1);
+				}
+				columnTypes = types;
+			}
+			return columnTypes;
+		}
+		private static Object readColumn(ResultSet r, int column, int type) throws SQLException {
+			Object o;
+			switch (type) {
+				case Types.INTEGER:
+				case Types.SMALLINT:
+				case Types.TINYINT:
+					o = r.getInt(column);
+					break;
+				case Types.BIGINT:
+					o = r.getLong(column);
+					break;
+				case Types.FLOAT:
+				case Types.REAL:
+				case Types.DOUBLE:
+					o = r.getDouble(column);
+					break;
+				case Types.BIT:
+				case Types.BOOLEAN:
+					o = r.getBoolean(column);
+					break;
+				case Types.BLOB:
+				case Types.BINARY:
+				case Types.VARBINARY:
+				case Types.LONGVARBINARY:
+					return r.getBytes(column);
+				default:
+					return r.getString(column);
+			}
+			return r.wasNull() ? null : o;
+		}
 		/**
 		 * Closes the cursor and frees resources.
 		 */
 		public void Close() throws SQLException {
 			getObject().close();
+			Object[] cached = cachedPS.remove(getObject());
 			Statement ps = closePS.remove(getObject());
-			if (ps != null)
-				ps.close();
+			if (ps != null) {
+				if (cached != null)
+					((StatementsCache)cached[0]).release((String)cached[1], (PreparedStatement)ps);
+				else
+					ps.close();
+			}
 		}
 
 	}
+	/**
+	 * LRU cache of prepared statements. A statement is removed from the cache while it is in use,
+	 *so the same statement is never used by two callers at the same time.
+	 */
+	static class StatementsCache extends LinkedHashMap<String, PreparedStatement> {
+		private static final long serialVersionUID = 1L;
+		final Connection connection;
+		final int maxSize;
+		StatementsCache(Connection connection, int maxSize) {
+			super(16, 0.75f, true);
+			this.connection = connection;
+			this.maxSize = maxSize;
+		}
+		synchronized PreparedStatement take(String sql) throws SQLException {
+			PreparedStatement ps = remove(sql);
+			if (ps != null && ps.isClosed())
+				return null;
+			return ps;
+		}
+		synchronized void release(String sql, PreparedStatement ps) throws SQLException {
+			if (containsKey(sql) || ps.isClosed()) {
+				ps.close();
+				return;
+			}
+			ps.clearParameters();
+			put(sql, ps);
+		}
+		synchronized void closeAll() {
+			for (PreparedStatement ps : values()) {
+				try {
+					ps.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			clear();
+		}
+		@Override
+		protected boolean removeEldestEntry(java.util.Map.Entry<String, PreparedStatement> eldest) {
+			if (size() > maxSize) {
+				try {
+					eldest.getValue().close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+				return true;
+			}
+			return false;
+		}
+	}
 }
 
 
 
+
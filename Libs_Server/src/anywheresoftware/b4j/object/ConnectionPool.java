@@ -21,10 +21,13 @@ import java.beans.PropertyVetoException;
 import java.sql.SQLException;
 import java.util.concurrent.Callable;
 
+import javax.sql.DataSource;
+
 import anywheresoftware.b4a.AbsObjectWrapper;
 import anywheresoftware.b4a.BA;
 import anywheresoftware.b4a.BA.Events;
 import anywheresoftware.b4a.BA.ShortName;
+import anywheresoftware.b4a.objects.collections.Map;
 import anywheresoftware.b4j.objects.SQL;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
@@ -34,7 +37,7 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
  */
 @ShortName("ConnectionPool")
 @Events(values={"ConnectionReady (Success As Boolean, SQL As SQL)"})
-public class ConnectionPool extends AbsObjectWrapper<ComboPooledDataSource> {
+public class ConnectionPool extends AbsObjectWrapper<DataSource> {
 	/**
 	 * Initializes the pool.
 	 *DriverClass - The JDBC driver class.
@@ -54,6 +57,71 @@ public class ConnectionPool extends AbsObjectWrapper<ComboPooledDataSource> {
 		pool.setCheckoutTimeout(20000);
 		pool.setTestConnectionOnCheckout(true);
 	}
+	/**
+	 * Initializes the pool with the built-in lightweight pool instead of c3p0.
+	 *Connections are not tested on checkout. Instead, idle connections are validated every 10 minutes and closed after 30 minutes without use.
+	 *MaxPoolSize - Maximum number of connections.
+	 */
+	public void InitializeLightweight(String DriverClass, String JdbcUrl, String User, String Password, int MaxPoolSize) throws ClassNotFoundException {
+		setObject(new LightweightConnectionPool(DriverClass, JdbcUrl, User, Password, MaxPoolSize));
+	}
+	/**
+	 * Gets or sets the time (in milliseconds) after which a connection that was not returned to the pool will be reported in the logs, together with
+	 *the stack trace of the code that retrieved it. Only supported by pools initialized with InitializeLightweight.
+	 *Default value is 0 (disabled).
+	 */
+	public long getLeakDetectionThreshold() {
+		return getLightweightPool().leakDetectionThreshold;
+	}
+	public void setLeakDetectionThreshold(long l) {
+		getLightweightPool().leakDetectionThreshold = l;
+	}
+	private LightweightConnectionPool getLightweightPool() {
+		if (getObject() instanceof LightweightConnectionPool == false)
+			throw new RuntimeException("Only supported by pools initialized with InitializeLightweight.");
+		return (LightweightConnectionPool)getObject();
+	}
+	/**
+	 * Returns a Map with the pool statistics: Active, Idle, Total and Waiters (number of threads waiting for a connection).
+	 *Pools initialized with InitializeLightweight also include Checkouts, Timeouts and CheckoutLatency. CheckoutLatency is a Map
+	 *with the number of checkouts in each latency range.
+	 */
+	public Map GetStatistics() throws SQLException {
+		Map m = new Map();
+		m.Initialize();
+		if (getObject() instanceof LightweightConnectionPool) {
+			LightweightConnectionPool pool = (LightweightConnectionPool)getObject();
+			m.Put("Active", pool.getActiveConnections());
+			m.Put("Idle", pool.getIdleConnections());
+			m.Put("Total", pool.getTotalConnections());
+			m.Put("Waiters", pool.getWaiters());
+			m.Put("Checkouts", pool.getCheckouts());
+			m.Put("Timeouts", pool.getTimeouts());
+			Map latency = new Map();
+			latency.Initialize();
+			long[] histogram = pool.getCheckoutLatencyHistogram();
+			for (int i = 0;i < histogram.length;i++) {
+				String key = i < LightweightConnectionPool.LATENCY_BUCKETS.length ? "<" + formatMicros(LightweightConnectionPool.LATENCY_BUCKETS[i]) :
+					">=" + formatMicros(LightweightConnectionPool.LATENCY_BUCKETS[i - 1]);
+				latency.Put(key, histogram[i]);
+			}
+			m.Put("CheckoutLatency", latency.getObject());
+		} else {
+			ComboPooledDataSource pool = (ComboPooledDataSource)getObject();
+			m.Put("Active", pool.getNumBusyConnectionsDefaultUser());
+			m.Put("Idle", pool.getNumIdleConnectionsDefaultUser());
+			m.Put("Total", pool.getNumConnectionsDefaultUser());
+			m.Put("Waiters", pool.getNumThreadsAwaitingCheckoutDefaultUser());
+		}
+		return m;
+	}
+	private static String formatMicros(long micros) {
+		if (micros >= 1000000)
+			return (micros / 1000000) + "s";
+		if (micros >= 1000)
+			return (micros / 1000) + "ms";
+		return micros + "us";
+	}
 	/**
 	 * Retrieves a connection from the pool. Make sure to close the connection when you are done with it.
 	 */
@@ -77,7 +145,11 @@ public class ConnectionPool extends AbsObjectWrapper<ComboPooledDataSource> {
 		});
 	}
 	public void ClosePool() {
-		if (IsInitialized())
-			getObject().close();
+		if (IsInitialized()) {
+			if (getObject() instanceof LightweightConnectionPool)
+				((LightweightConnectionPool)getObject()).close();
+			else
+				((ComboPooledDataSource)getObject()).close();
+		}
 	}
 }
@@ -19,6 +19,9 @@ package anywheresoftware.b4j.object;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
@@ -49,6 +52,7 @@ import anywheresoftware.b4a.objects.collections.Map;
 import anywheresoftware.b4a.objects.streams.File;
 import anywheresoftware.b4a.objects.streams.File.InputStreamWrapper;
 import anywheresoftware.b4a.objects.streams.File.OutputStreamWrapper;
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.FilterConfig;
@@ -66,10 +70,27 @@ public class JServlet extends HttpServlet implements Filter{
 	private final Class<?> handlerClass;
 	private final Method initializeMethod;
 	private final boolean singleThread;
-	public JServlet(Class<?> handlerClass, boolean singleThread) throws SecurityException, NoSuchMethodException {
+	private final boolean reuseInstances;
+	private final boolean asyncSingleThread;
+	private final MethodHandle constructorHandle, initializeHandle;
+	//handler instances are bound to the thread that created them as the BA message loop is bound to this thread.
+	private final ThreadLocal<HandlerInstance> instances = new ThreadLocal<HandlerInstance>();
+	public JServlet(Class<?> handlerClass, boolean singleThread) throws SecurityException, NoSuchMethodException, IllegalAccessException {
+		this(handlerClass, singleThread, false);
+	}
+	public JServlet(Class<?> handlerClass, boolean singleThread, boolean reuseInstances) throws SecurityException, NoSuchMethodException, IllegalAccessException {
+		this(handlerClass, singleThread, reuseInstances, false);
+	}
+	public JServlet(Class<?> handlerClass, boolean singleThread, boolean reuseInstances, boolean asyncSingleThread) throws SecurityException, NoSuchMethodException, IllegalAccessException {
 		this.handlerClass = handlerClass;
+		this.asyncSingleThread = asyncSingleThread;
 		initializeMethod = getInitializeMethod(handlerClass);
 		this.singleThread = singleThread;
+		this.reuseInstances = reuseInstances;
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		constructorHandle = lookup.findConstructor(handlerClass, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+		initializeMethod.setAccessible(true);
+		initializeHandle = lookup.unreflect(initializeMethod).asType(MethodType.methodType(void.class, Object.class, BA.class));
 	}
 	public static Method getInitializeMethod(Class<?> c) throws NoSuchMethodException, SecurityException {
 		Method m = null;
@@ -90,6 +111,24 @@ public class JServlet extends HttpServlet implements Filter{
 		}
 		return handler;
 	}
+	private B4AClass newInstance() throws Throwable {
+		//the call site type must match the handle type exactly: ()Object.
+		B4AClass handler = (B4AClass)(Object)constructorHandle.invokeExact();
+		initializeHandle.invokeExact((Object)handler, (BA)null);
+		BA ba = handler.getBA();
+		if (BA.isShellModeRuntimeCheck(ba)) {
+			ba.raiseEvent(null, "initialize", (Object)null);
+		}
+		return handler;
+	}
+	private static class HandlerInstance {
+		final B4AClass handler;
+		final ServletRequestWrapper request = new ServletRequestWrapper();
+		final ServletResponseWrapper response = new ServletResponseWrapper();
+		HandlerInstance(B4AClass handler) {
+			this.handler = handler;
+		}
+	}
 	@Override
 	public void doFilter(ServletRequest request, ServletResponse response,
 			FilterChain chain) throws IOException, ServletException {
@@ -124,6 +163,13 @@ public class JServlet extends HttpServlet implements Filter{
 		Handle h = new Handle(request, response, chain);
 		if (singleThread && 
 				(BA.firstInstance.getOwnerThread() != Thread.currentThread())) {
+			if (asyncSingleThread && chain == null && request.isAsyncSupported()) {
+				//the Jetty thread is released. The response will be completed by the main thread.
+				h.asyncContext = request.startAsync();
+				h.asyncContext.setTimeout(0);
+				BA.firstInstance.postRunnable(h);
+				return;
+			}
 			h.cdl = new CountDownLatch(1);
 			synchronized (BA.firstInstance) {
 				BA.firstInstance.postRunnable(h);
@@ -144,6 +190,7 @@ public class JServlet extends HttpServlet implements Filter{
 		private final HttpServletResponse response;
 		private final FilterChain chain;
 		public CountDownLatch cdl;
+		public AsyncContext asyncContext;
 		public Handle (HttpServletRequest request, HttpServletResponse response, FilterChain chain) {
 			this.request = request;
 			this.response = response;
@@ -153,11 +200,16 @@ public class JServlet extends HttpServlet implements Filter{
 		public void run() {
 			try {
 				try {
-					B4AClass b4aclass = createInstance(handlerClass, initializeMethod);
-					BA ba = b4aclass.getBA();
-					Object o = ba.raiseEvent(null, chain == null ? "handle" : "filter" ,
-							AbsObjectWrapper.ConvertToWrapper(new ServletRequestWrapper(),request), 
-							AbsObjectWrapper.ConvertToWrapper(new ServletResponseWrapper(), response));
+					Object o;
+					if (reuseInstances) {
+						o = runWithReusedInstance();
+					} else {
+						B4AClass b4aclass = newInstance();
+						BA ba = b4aclass.getBA();
+						o = ba.raiseEvent(null, chain == null ? "handle" : "filter" ,
+								AbsObjectWrapper.ConvertToWrapper(new ServletRequestWrapper(),request), 
+								AbsObjectWrapper.ConvertToWrapper(new ServletResponseWrapper(), response));
+					}
 					if (chain != null) {
 						if (Boolean.TRUE.equals(o))
 							chain.doFilter(request, response);
@@ -166,16 +218,44 @@ public class JServlet extends HttpServlet implements Filter{
 					if (cdl != null)
 						cdl.countDown();
 				}
-			} catch (Exception e) {
+			} catch (Throwable e) {
 				try {
 					response.sendError(500, e.toString());
 				} catch (Exception e1) {
 					e1.printStackTrace();
 				}
 				e.printStackTrace();
+			} finally {
+				if (asyncContext != null)
+					asyncContext.complete();
 			}
 
 		}
+		private Object runWithReusedInstance() throws Throwable {
+			HandlerInstance hi = instances.get();
+			BA ba;
+			if (hi == null) {
+				hi = new HandlerInstance(newInstance());
+				instances.set(hi);
+				ba = hi.handler.getBA();
+			}
+			else {
+				ba = hi.handler.getBA();
+				//optional hook that clears the state of the previous request.
+				ba.raiseEvent(null, "reset");
+			}
+			hi.request.setObject(request);
+			hi.response.setObject(response);
+			boolean success = false;
+			try {
+				Object o = ba.raiseEvent(null, chain == null ? "handle" : "filter", hi.request, hi.response);
+				success = true;
+				return o;
+			} finally {
+				if (!success) //don't reuse an instance that might be in an inconsistent state.
+					instances.remove();
+			}
+		}
 
 	}
 
@@ -0,0 +1,391 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package anywheresoftware.b4j.object;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import anywheresoftware.b4a.BA;
+import anywheresoftware.b4a.BA.Hide;
+
+/**
+ * A simple connection pool. Idle connections are kept in a lock free deque and the number of connections is limited with a semaphore.
+ *Instead of testing the connections on each checkout, idle connections are validated periodically by a background task.
+ *The same task also closes connections that were idle for too long and reports connections that were not returned to the pool.
+ */
+@Hide
+public class LightweightConnectionPool implements DataSource {
+	//upper bounds of the checkout latency histogram buckets, in microseconds. The last bucket holds all other values.
+	public static final long[] LATENCY_BUCKETS = new long[] {10, 100, 1000, 10000, 100000, 1000000};
+	private static final long HOUSEKEEPING_PERIOD = 30000;
+	private static ScheduledThreadPoolExecutor housekeeper;
+	private final String jdbcUrl, user, password;
+	private final int maxPoolSize;
+	private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+	private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+	private final Semaphore permits;
+	private final AtomicInteger totalConnections = new AtomicInteger();
+	private final AtomicLong checkouts = new AtomicLong(), timeouts = new AtomicLong();
+	private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+	private final ScheduledFuture<?> housekeepingFuture;
+	private volatile boolean closed;
+	public volatile int checkoutTimeout = 20000;
+	public volatile long keepAliveTime = 600000;
+	public volatile long maxIdleTime = 1800000;
+	//0 - disabled
+	public volatile long leakDetectionThreshold;
+
+	public LightweightConnectionPool(String DriverClass, String JdbcUrl, String User, String Password, int MaxPoolSize) throws ClassNotFoundException {
+		Class.forName(DriverClass);
+		this.jdbcUrl = JdbcUrl;
+		this.user = User;
+		this.password = Password;
+		this.maxPoolSize = MaxPoolSize;
+		permits = new Semaphore(MaxPoolSize);
+		housekeepingFuture = getHousekeeper().scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					housekeeping();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, HOUSEKEEPING_PERIOD, HOUSEKEEPING_PERIOD, TimeUnit.MILLISECONDS);
+	}
+	private static synchronized ScheduledThreadPoolExecutor getHousekeeper() {
+		if (housekeeper == null) {
+			housekeeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "connection pool housekeeper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			housekeeper.setRemoveOnCancelPolicy(true);
+		}
+		return housekeeper;
+	}
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (closed)
+			throw new SQLException("Pool is closed.");
+		long start = System.nanoTime();
+		try {
+			if (permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS) == false) {
+				timeouts.incrementAndGet();
+				throw new SQLException("Timeout waiting for a connection (" + checkoutTimeout + "ms).");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException(e);
+		}
+		PooledConnection pc;
+		try {
+			while (true) {
+				pc = idle.pollFirst();
+				if (pc == null) {
+					pc = new PooledConnection(DriverManager.getConnection(jdbcUrl, user, password));
+					totalConnections.incrementAndGet();
+					break;
+				}
+				if (pc.raw.isClosed() == false)
+					break;
+				discard(pc);
+			}
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		pc.checkoutTime = System.currentTimeMillis();
+		pc.lastUsed = pc.checkoutTime;
+		pc.checkoutStack = leakDetectionThreshold > 0 ? new Exception("Connection checkout") : null;
+		pc.leakReported = false;
+		borrowed.add(pc);
+		checkouts.incrementAndGet();
+		recordLatency((System.nanoTime() - start) / 1000);
+		return pc.createHandle();
+	}
+	private void recordLatency(long micros) {
+		int i = 0;
+		while (i < LATENCY_BUCKETS.length && micros >= LATENCY_BUCKETS[i])
+			i++;
+		latencyHistogram.incrementAndGet(i);
+	}
+	void release(PooledConnection pc) {
+		borrowed.remove(pc);
+		pc.checkoutStack = null;
+		boolean reusable = closed == false && totalConnections.get() <= maxPoolSize;
+		if (reusable) {
+			try {
+				if (pc.raw.getAutoCommit() == false) {
+					pc.raw.rollback();
+					pc.raw.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				reusable = false;
+			}
+		}
+		if (reusable) {
+			pc.lastUsed = System.currentTimeMillis();
+			pc.lastValidated = pc.lastUsed;
+			idle.offerFirst(pc);
+		} else {
+			discard(pc);
+		}
+		permits.release();
+	}
+	private void discard(PooledConnection pc) {
+		totalConnections.decrementAndGet();
+		try {
+			pc.raw.close();
+		} catch (Exception e) {
+			//ignore
+		}
+	}
+	private void housekeeping() {
+		long now = System.currentTimeMillis();
+		for (PooledConnection pc : idle) {
+			if (now - pc.lastUsed > maxIdleTime) {
+				if (idle.removeFirstOccurrence(pc))
+					discard(pc);
+			} else if (now - pc.lastValidated > keepAliveTime) {
+				if (idle.removeFirstOccurrence(pc)) {
+					boolean valid;
+					try {
+						valid = pc.raw.isValid(5);
+					} catch (SQLException e) {
+						valid = false;
+					}
+					if (valid && closed == false) {
+						//lastUsed is not updated, so the connection is still closed after MaxIdleTime.
+						pc.lastValidated = System.currentTimeMillis();
+						idle.offerLast(pc);
+					} else {
+						discard(pc);
+					}
+				}
+			}
+		}
+		long threshold = leakDetectionThreshold;
+		if (threshold > 0) {
+			for (PooledConnection pc : borrowed) {
+				Exception stack = pc.checkoutStack;
+				if (pc.leakReported == false && stack != null && now - pc.checkoutTime > threshold) {
+					pc.leakReported = true;
+					BA.LogError("Connection was not returned to the pool for more than " + threshold + "ms. Possible leak. Checkout stack trace:");
+					stack.printStackTrace();
+				}
+			}
+		}
+	}
+	/**
+	 * Closes the idle connections. Borrowed connections are closed when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		housekeepingFuture.cancel(false);
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null)
+			discard(pc);
+	}
+	public int getActiveConnections() {
+		return borrowed.size();
+	}
+	public int getIdleConnections() {
+		return idle.size();
+	}
+	public int getTotalConnections() {
+		return totalConnections.get();
+	}
+	public int getWaiters() {
+		return permits.getQueueLength();
+	}
+	public long getCheckouts() {
+		return checkouts.get();
+	}
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+	public long[] getCheckoutLatencyHistogram() {
+		long[] res = new long[latencyHistogram.length()];
+		for (int i = 0;i < res.length;i++)
+			res[i] = latencyHistogram.get(i);
+		return res;
+	}
+	
+	class PooledConnection {
+		final Connection raw;
+		//last checkout or release.
+		volatile long lastUsed;
+		//last time the connection was known to be valid (release or keep alive check).
+		volatile long lastValidated;
+		volatile long checkoutTime;
+		volatile Exception checkoutStack;
+		volatile boolean leakReported;
+		PooledConnection(Connection raw) {
+			this.raw = raw;
+		}
+		//each checkout gets a new handle, so closing a handle twice or using it after it was closed doesn't affect the next borrower.
+		Connection createHandle() {
+			return (Connection) Proxy.newProxyInstance(LightweightConnectionPool.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+				private volatile boolean handleClosed;
+				//statements and metadata result sets that were opened with this handle. They are closed when the handle is closed, like c3p0 does.
+				private final Set<AutoCloseable> opened = ConcurrentHashMap.newKeySet();
+				private int pruneSize = 64;
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if (name.equals("close")) {
+						synchronized (this) {
+							if (handleClosed)
+								return null;
+							handleClosed = true;
+						}
+						closeOpened();
+						release(PooledConnection.this);
+						return null;
+					} else if (name.equals("isClosed")) {
+						return handleClosed || raw.isClosed();
+					} else if (name.equals("equals")) {
+						return proxy == args[0];
+					} else if (name.equals("hashCode")) {
+						return System.identityHashCode(proxy);
+					} else if (name.equals("toString")) {
+						return "Pooled connection: " + raw;
+					}
+					if (handleClosed)
+						throw new SQLException("Connection is closed.");
+					Object res;
+					try {
+						res = method.invoke(raw, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if (res instanceof Statement) {
+						track((Statement)res);
+					} else if (res instanceof DatabaseMetaData) {
+						res = trackMetaData((DatabaseMetaData)res);
+					}
+					return res;
+				}
+				private DatabaseMetaData trackMetaData(final DatabaseMetaData md) {
+					return (DatabaseMetaData) Proxy.newProxyInstance(LightweightConnectionPool.class.getClassLoader(), new Class<?>[] {DatabaseMetaData.class}, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							Object res;
+							try {
+								res = method.invoke(md, args);
+							} catch (InvocationTargetException e) {
+								throw e.getCause();
+							}
+							if (res instanceof ResultSet)
+								track((ResultSet)res);
+							return res;
+						}
+					});
+				}
+				//closed statements are removed from time to time, so handles that are used for many statements don't hold all of them.
+				private synchronized void track(AutoCloseable c) throws SQLException {
+					if (opened.size() >= pruneSize) {
+						Iterator<AutoCloseable> it = opened.iterator();
+						while (it.hasNext()) {
+							AutoCloseable o = it.next();
+							if (o instanceof Statement ? ((Statement)o).isClosed() : ((ResultSet)o).isClosed())
+								it.remove();
+						}
+						pruneSize = Math.max(64, opened.size() * 2);
+					}
+					opened.add(c);
+				}
+				private synchronized void closeOpened() {
+					for (AutoCloseable c : opened) {
+						try {
+							c.close();
+						} catch (Exception e) {
+							//ignore
+						}
+					}
+					opened.clear();
+				}
+			});
+		}
+	}
+	
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException();
+	}
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return null;
+	}
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+	}
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		DriverManager.setLoginTimeout(seconds);
+	}
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return DriverManager.getLoginTimeout();
+	}
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this))
+			return (T) this;
+		throw new SQLException("Not a wrapper for " + iface);
+	}
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+}
@@ -48,6 +48,7 @@ import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 import anywheresoftware.b4a.AbsObjectWrapper;
+import anywheresoftware.b4a.B4AThreadPool;
 import anywheresoftware.b4a.BA;
 import anywheresoftware.b4a.BA.CustomClass;
 import anywheresoftware.b4a.BA.CustomClasses;
@@ -141,6 +142,9 @@ public class ServerWrapper {
 	@Hide
 	public boolean MutableHandleCollection = false;
 	private String customLogFormat = CustomRequestLog.EXTENDED_NCSA_FORMAT;
+	private boolean reuseHandlerInstances;
+	private boolean asyncSingleThreadHandlers;
+	private boolean virtualThreadWebSockets = B4AThreadPool.useVirtualThreads;
 
 	private final ArrayList<HandlerData> handlers = new ArrayList<ServerWrapper.HandlerData>();
 	private final ThreadLocal<Integer> threadsIndex = new ThreadLocal<Integer>() {
@@ -216,8 +220,10 @@ public class ServerWrapper {
 		context.setBaseResourceAsString(staticFiles);
 		final boolean debug = BA.isShellModeRuntimeCheck(ba);
 		for (HandlerData hd : handlers) {
-			JServlet js = new JServlet(Class.forName(fixClassName(hd)), hd.singleThread | debug);
+			JServlet js = new JServlet(Class.forName(fixClassName(hd)), hd.singleThread | debug, reuseHandlerInstances, asyncSingleThreadHandlers);
 			ServletHolder sh = new ServletHolder(js);
+			if (asyncSingleThreadHandlers)
+				sh.setAsyncSupported(true);
 			context.addServlet(sh, hd.path);
 		}
 		for (HandlerData hd : filters) {
@@ -232,7 +238,7 @@ public class ServerWrapper {
 				}
 			}
 			else {
-				JServlet js = new JServlet(Class.forName(fixClassName(hd)), hd.singleThread | debug);
+				JServlet js = new JServlet(Class.forName(fixClassName(hd)), hd.singleThread | debug, reuseHandlerInstances);
 				fh = new FilterHolder(js);
 			}
 			context.addFilter(fh, hd.path, EnumSet.of(DispatcherType.REQUEST));
@@ -240,7 +246,7 @@ public class ServerWrapper {
 		
 		for (HandlerData hd : webSockets) {
 			WebSocketModule.Servlet s = new WebSocketModule.Servlet(Class.forName(fixClassName(hd)), hd.singleThread | debug,
-					hd.maxIdleTime);
+					hd.maxIdleTime, virtualThreadWebSockets);
 			ServletHolder sh = new ServletHolder(s);
 			context.addServlet(sh, hd.path);
 		}
@@ -472,6 +478,42 @@ public class ServerWrapper {
 			o.put(String.valueOf(e.getKey()), value);
 		}
 	}
+	/**
+	 * Gets or sets whether handlers and filters instances are reused instead of creating a new instance for each request.
+	 *Each thread keeps its own instance. The class global variables keep their values between requests, so you should
+	 *add a sub named Reset to the handler class and clear the state there. It will be called before the instance is reused.
+	 *An instance that raised an error will not be reused.
+	 *Should be set before the server is started. Default value is False.
+	 */
+	public boolean getReuseHandlerInstances() {
+		return reuseHandlerInstances;
+	}
+	public void setReuseHandlerInstances(boolean b) {
+		reuseHandlerInstances = b;
+	}
+	/**
+	 * Gets or sets whether requests to single thread handlers are handled asynchronously.
+	 *When True, the request is passed to the main thread and the Jetty thread is released immediately, instead of waiting for the handler to complete.
+	 *The response is completed when the Handle sub returns. Filters are not affected.
+	 *Should be set before the server is started. Default value is False.
+	 */
+	public boolean getAsyncSingleThreadHandlers() {
+		return asyncSingleThreadHandlers;
+	}
+	public void setAsyncSingleThreadHandlers(boolean b) {
+		asyncSingleThreadHandlers = b;
+	}
+	/**
+	 * Gets or sets whether the message loops of WebSocket handlers (that are not single thread handlers) run on virtual threads.
+	 *Each connection still has its own message loop, so events of a connection are raised in the same order. Requires Java 21+.
+	 *Should be set before the server is started. Default value is False, unless the b4j.virtualthreads system property is set to true.
+	 */
+	public boolean getVirtualThreadWebSockets() {
+		return virtualThreadWebSockets;
+	}
+	public void setVirtualThreadWebSockets(boolean b) {
+		virtualThreadWebSockets = b;
+	}
 	/**
 	 * Gets or sets the log format.
 	 *The format is documented <link>here|https://www.eclipse.org/jetty/javadoc/jetty-11/org/eclipse/jetty/server/CustomRequestLog.html</link>.
@@ -95,6 +95,26 @@ public class WebSocket{
 	public final Adapter adapter;
 	public final boolean singleThread;
 	final LinkedList<SimpleFuture> futures = new LinkedList<SimpleFuture>();
+	private static final int MAX_BATCH_CHARACTERS = 65536;
+	private BA ba;
+	private final Object sendLock = new Object();
+	private final Object flushLock = new Object();
+	private StringBuilder batch = new StringBuilder();
+	private int batchCount;
+	private boolean flushScheduled;
+	private volatile boolean batchMessages;
+	private volatile int maxPendingCharacters;
+	private volatile long messagesSent, framesSent, charactersSent, pendingCharacters;
+	private final Runnable flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				Flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	};
 	public WebSocket(Session session, Adapter adapter, boolean singleThread) {
 		this.session = session;
 		this.adapter = adapter;
@@ -119,15 +139,154 @@ public class WebSocket{
 		return session.isOpen();
 	}
 	/**
-	 * Does not do anything. Kept for backward compatibility.
+	 * Sends the messages that were batched. Does not do anything if BatchMessages is False.
+	 *Batched messages are also sent automatically when the current event completes.
 	 */
 	public void Flush() throws IOException {
-
+		synchronized (flushLock) {
+			String s;
+			synchronized (sendLock) {
+				flushScheduled = false;
+				if (batchCount == 0)
+					return;
+				if (batchCount == 1) {
+					s = batch.toString();
+				} else {
+					s = new StringBuilder(batch.length() + 2).append('[').append(batch).append(']').toString();
+				}
+				batchCount = 0;
+				batch.setLength(0);
+				if (batch.capacity() > MAX_BATCH_CHARACTERS * 2)
+					batch = new StringBuilder();
+			}
+			if (session.isOpen())
+				sendFrame(s);
+		}
+	}
+	/**
+	 * Gets or sets whether the messages sent during an event will be batched and sent together in a single frame.
+	 *The frame is sent when the event completes, when Flush is called or when the value of a Future is requested.
+	 *The client script must support batched messages (JSON arrays of messages).
+	 *Default value is False.
+	 */
+	public boolean getBatchMessages() {
+		return batchMessages;
+	}
+	public void setBatchMessages(boolean b) throws IOException {
+		if (!b)
+			Flush();
+		batchMessages = b;
+	}
+	/**
+	 * Gets or sets the maximum number of characters that can be waiting to be sent.
+	 *When this limit is exceeded, the calling thread is blocked until the outbound data is written (up to 10 seconds).
+	 *Handlers that run in single thread mode share the main thread, so instead of waiting the send fails immediately with an IOException.
+	 *Default value is 0 which means that there is no limit.
+	 */
+	public int getMaxPendingCharacters() {
+		return maxPendingCharacters;
+	}
+	public void setMaxPendingCharacters(int i) {
+		maxPendingCharacters = i;
+	}
+	/**
+	 * Returns the number of messages sent on this connection.
+	 */
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+	/**
+	 * Returns the number of frames sent on this connection. It will be lower than MessagesSent when messages are batched.
+	 */
+	public long getFramesSent() {
+		return framesSent;
+	}
+	/**
+	 * Returns the number of characters sent on this connection.
+	 */
+	public long getCharactersSent() {
+		return charactersSent;
+	}
+	/**
+	 * Returns the number of characters that were sent and are still waiting to be written.
+	 */
+	public long getPendingCharacters() {
+		return pendingCharacters;
 	}
 	
 	private void sendText(String s) throws IOException {
-		session.sendText(s, Callback.NOOP);
-//		shouldFlushOutput = true;
+		if (!batchMessages) {
+			synchronized (sendLock) {
+				messagesSent++;
+			}
+			synchronized (flushLock) {
+				sendFrame(s);
+			}
+			return;
+		}
+		boolean schedule = false, full;
+		synchronized (sendLock) {
+			messagesSent++;
+			if (batchCount > 0)
+				batch.append(',');
+			batch.append(s);
+			batchCount++;
+			full = batch.length() >= MAX_BATCH_CHARACTERS;
+			if (!full && !flushScheduled) {
+				flushScheduled = true;
+				schedule = true;
+			}
+		}
+		if (full)
+			Flush();
+		else if (schedule) {
+			if (ba != null)
+				ba.postRunnable(flushRunnable);
+			else
+				Flush();
+		}
+	}
+	//should be called while holding flushLock to preserve the frames order.
+	private void sendFrame(String s) throws IOException {
+		final int len = s.length();
+		synchronized (sendLock) {
+			if (maxPendingCharacters > 0 && pendingCharacters > 0 && pendingCharacters + len > maxPendingCharacters) {
+				//single thread handlers share the main message loop. Waiting here would block all other connections.
+				if (singleThread)
+					throw new IOException("Too many pending characters: " + pendingCharacters);
+				long deadline = System.currentTimeMillis() + WebSocketModule.Servlet.DATA_TIMEOUT;
+				while (pendingCharacters > 0 && pendingCharacters + len > maxPendingCharacters && session.isOpen()) {
+					long timeToWait = deadline - System.currentTimeMillis();
+					if (timeToWait <= 0)
+						throw new IOException("Timeout waiting for pending messages to be sent.");
+					try {
+						sendLock.wait(timeToWait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					}
+				}
+			}
+			pendingCharacters += len;
+			framesSent++;
+			charactersSent += len;
+		}
+		session.sendText(s, new Callback() {
+			@Override
+			public void succeed() {
+				sent(len);
+			}
+			@Override
+			public void fail(Throwable x) {
+				sent(len);
+			}
+		});
+	}
+	private void sent(int len) {
+		synchronized (sendLock) {
+			pendingCharacters -= len;
+			sendLock.notifyAll();
+		}
 	}
 	private SimpleFuture get(String etype, Map m) {
 		JSONGenerator jg = new JSONGenerator();
@@ -369,11 +528,18 @@ public class WebSocket{
 	 * Closes the WebSocket connection.
 	 */
 	public void Close() {
-		if (session.isOpen())
+		if (session.isOpen()) {
+			try {
+				Flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 			session.close();
+		}
 	}
 	
 	void setEvents(BA ba) {
+		this.ba = ba;
 		Map m = new Map(); m.Initialize();
 		m.Put("etype", "setAutomaticEvents");
 		List events = new List();
@@ -23,6 +23,7 @@ import java.net.SocketTimeoutException;
 import java.nio.channels.ClosedChannelException;
 import java.time.Duration;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -40,8 +41,10 @@ import org.eclipse.jetty.websocket.api.exceptions.WebSocketTimeoutException;
 
 import anywheresoftware.b4a.AbsObjectWrapper;
 import anywheresoftware.b4a.B4AClass;
+import anywheresoftware.b4a.B4AThreadPool;
 import anywheresoftware.b4a.BA;
 import anywheresoftware.b4a.BA.Hide;
+import anywheresoftware.b4a.StandardBA;
 import anywheresoftware.b4a.keywords.Common;
 import anywheresoftware.b4a.objects.collections.Map;
 import anywheresoftware.b4j.objects.collections.JSONParser;
@@ -58,15 +61,30 @@ public class WebSocketModule {
 		private final boolean singleThread;
 		private final int maxIdleTimeMinutes;
 		static ThreadPoolExecutor pool;
+		//not null when the message loops run on virtual threads.
+		static ExecutorService virtualPool;
+		private final ExecutorService executor;
 		public Servlet(Class<?> handlerClass, boolean singleThread, int maxIdleTimeMinutes) throws SecurityException, NoSuchMethodException {
+			this(handlerClass, singleThread, maxIdleTimeMinutes, false);
+		}
+		public Servlet(Class<?> handlerClass, boolean singleThread, int maxIdleTimeMinutes, boolean virtualThreads) throws SecurityException, NoSuchMethodException {
 			this.handlerClass = handlerClass;
 			initializeMethod = JServlet.getInitializeMethod(handlerClass);
 			this.singleThread = singleThread;
 			this.maxIdleTimeMinutes = maxIdleTimeMinutes;
-			if (pool == null) {
-				pool = new ThreadPoolExecutor(10, Integer.MAX_VALUE,
-						30L, TimeUnit.MINUTES,
-						new SynchronousQueue<Runnable>());
+			synchronized (Servlet.class) {
+				if (virtualThreads && virtualPool == null)
+					virtualPool = B4AThreadPool.createVirtualThreadExecutor();
+				if (virtualThreads && virtualPool != null) {
+					executor = virtualPool;
+				} else {
+					if (pool == null) {
+						pool = new ThreadPoolExecutor(10, Integer.MAX_VALUE,
+								30L, TimeUnit.MINUTES,
+								new SynchronousQueue<Runnable>());
+					}
+					executor = pool;
+				}
 			}
 		}
 		@Override
@@ -115,7 +133,7 @@ public class WebSocketModule {
 				BA.firstInstance.postRunnable(handler);
 			}
 			else {
-				Servlet.pool.submit(handler);
+				parentServlet.executor.submit(handler);
 			}
 			if (startLatch.await(120, TimeUnit.SECONDS) == false) {
 				throw new RuntimeException("timeout waiting for handler to start");
@@ -220,6 +238,15 @@ public class WebSocketModule {
 
 			@Override
 			public void run() {
+				try {
+					runHandler();
+				} finally {
+					//in multithreaded mode the message loop ended with the connection. Without this the loops map grows with every virtual thread.
+					if (parentServlet.singleThread == false)
+						StandardBA.removeMessageLoop();
+				}
+			}
+			private void runHandler() {
 				try {
 					classInstance = JServlet.createInstance(parentServlet.handlerClass, parentServlet.initializeMethod);
 					ba = classInstance.getBA();
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2010 - 2021 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anywheresoftware.b4j.objects;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import anywheresoftware.b4a.AbsObjectWrapper;
+import anywheresoftware.b4a.BA;
+import anywheresoftware.b4a.BA.Events;
+import anywheresoftware.b4a.BA.ShortName;
+import anywheresoftware.b4a.objects.collections.List;
+
+/**
+ * Reads xlsx files without loading the complete workbook into memory.
+ *The sheets are parsed sequentially and only the current rows are kept in memory. Use it to read very large files.
+ *Each row is returned as an array of strings with the cells formatted values. Missing cells are returned as empty strings.
+ *Note that empty rows are skipped.
+ *Example:<code>
+ *Dim reader As PoiStreamingReader
+ *reader.Initialize(File.DirApp, "large.xlsx")
+ *Dim SenderFilter As Object = reader.ReadRowsAsync("reader", 0, 1000)
+ *Do While True
+ *	Wait For (SenderFilter) Reader_Rows (Success As Boolean, Rows As List, Completed As Boolean)
+ *	If Success = False Then
+ *		Log(LastException)
+ *		Exit
+ *	End If
+ *	For Each row() As String In Rows
+ *		Log(row(0))
+ *	Next
+ *	If Completed Then Exit
+ *Loop
+ *reader.Close</code>
+ */
+@ShortName("PoiStreamingReader")
+@Events(values={"Rows (Success As Boolean, Rows As List, Completed As Boolean)"})
+public class PoiStreamingReader extends AbsObjectWrapper<OPCPackage>{
+	/**
+	 * Opens the xlsx file.
+	 */
+	public void Initialize(String Dir, String FileName) throws Exception {
+		OPCPackage pkg;
+		if (Dir.equals(anywheresoftware.b4a.objects.streams.File.getDirAssets())) {
+			InputStream in = anywheresoftware.b4a.objects.streams.File.OpenInput(Dir, FileName).getObject();
+			try {
+				pkg = OPCPackage.open(in);
+			} finally {
+				in.close();
+			}
+		} else {
+			pkg = OPCPackage.open(new File(Dir, FileName), PackageAccess.READ);
+		}
+		setObject(pkg);
+	}
+	/**
+	 * Returns an array with the sheets names.
+	 */
+	public String[] GetSheetNames() throws Exception {
+		XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) new XSSFReader(getObject()).getSheetsData();
+		ArrayList<String> names = new ArrayList<String>();
+		while (it.hasNext()) {
+			it.next().close();
+			names.add(it.getSheetName());
+		}
+		return names.toArray(new String[0]);
+	}
+	/**
+	 * Reads the rows of the given sheet and returns a List with the rows.
+	 *MaxRows - Maximum number of rows to read. Pass 0 to read all rows.
+	 */
+	public List ReadRows(int SheetIndex, final int MaxRows) throws Exception {
+		final List rows = new List();
+		rows.Initialize();
+		parseSheet(SheetIndex, new RowsListener() {
+
+			@Override
+			public void onRow(String[] row) throws SAXException {
+				rows.Add(row);
+				if (MaxRows > 0 && rows.getSize() >= MaxRows)
+					throw new StopParsingException();
+			}
+		});
+		return rows;
+	}
+	/**
+	 * Asynchronously reads the given sheet and raises the Rows event for each chunk of rows.
+	 *ChunkSize - Number of rows in each chunk. Pass 0 to read all rows in a single event.
+	 *The next chunk is only raised after the previous event was handled, so the memory usage is bounded even with very large sheets.
+	 *Note that the Rows list is reused. Don't keep a reference to the list itself (the row arrays can be kept).
+	 *Completed parameter will be True in the last chunk. If an error occurs then the event is raised with Success = False.
+	 *Returns an object that can be used as the sender filter for Wait For calls.
+	 */
+	public Object ReadRowsAsync(final BA ba, final String EventName, final int SheetIndex, final int ChunkSize) {
+		final Object sender = new Object();
+		final String eventName = EventName.toLowerCase(BA.cul) + "_rows";
+		BA.submitRunnable(new Runnable() {
+
+			@Override
+			public void run() {
+				final Semaphore eventHandled = new Semaphore(1);
+				//two lists are used alternately. One is filled while the other is handled.
+				final List[] buffers = new List[] {new List(), new List()};
+				buffers[0].Initialize();
+				buffers[1].Initialize();
+				final int[] current = new int[1];
+				try {
+					parseSheet(SheetIndex, new RowsListener() {
+
+						@Override
+						public void onRow(String[] row) throws SAXException {
+							List rows = buffers[current[0]];
+							rows.Add(row);
+							if (ChunkSize > 0 && rows.getSize() >= ChunkSize) {
+								raise(rows, false);
+							}
+						}
+						private void raise(List rows, boolean completed) throws SAXException {
+							try {
+								eventHandled.acquire();
+							} catch (InterruptedException e) {
+								throw new SAXException(e);
+							}
+							raiseChunkEvent(ba, sender, eventName, eventHandled, new Object[] {true, rows, completed});
+							current[0] = 1 - current[0];
+							buffers[current[0]].Clear();
+						}
+						@Override
+						public void onEnd() throws SAXException {
+							raise(buffers[current[0]], true);
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+					ba.setLastException(e);
+					List empty = new List();
+					empty.Initialize();
+					raiseChunkEvent(ba, sender, eventName, null, new Object[] {false, empty, true});
+				}
+			}
+		}, null, 0);
+		return sender;
+	}
+	private static void raiseChunkEvent(final BA ba, final Object sender, final String eventName, final Semaphore eventHandled, final Object[] params) {
+		ba.postRunnable(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ba.raiseEvent2(sender, false, eventName, false, params);
+				} finally {
+					if (eventHandled != null)
+						eventHandled.release();
+				}
+			}
+		});
+	}
+	/**
+	 * Closes the file.
+	 */
+	public void Close() throws IOException {
+		if (IsInitialized()) {
+			getObject().revert();
+			setObject(null);
+		}
+	}
+	private void parseSheet(int SheetIndex, final RowsListener listener) throws Exception {
+		XSSFReader reader = new XSSFReader(getObject());
+		StylesTable styles = reader.getStylesTable();
+		ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(getObject());
+		XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) reader.getSheetsData();
+		InputStream sheet = null;
+		for (int i = 0;i <= SheetIndex;i++) {
+			if (sheet != null)
+				sheet.close();
+			if (it.hasNext() == false)
+				throw new IndexOutOfBoundsException("Invalid sheet index: " + SheetIndex);
+			sheet = it.next();
+		}
+		try {
+			XMLReader parser = XMLHelper.newXMLReader();
+			parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, new RowsCollector(listener), new DataFormatter(), false));
+			try {
+				parser.parse(new InputSource(sheet));
+			} catch (WrappedException e) {
+				if (e.getCause() instanceof StopParsingException)
+					return;
+				throw (SAXException)e.getCause();
+			}
+			listener.onEnd();
+		} finally {
+			sheet.close();
+		}
+	}
+	private static abstract class RowsListener {
+		public abstract void onRow(String[] row) throws SAXException;
+		public void onEnd() throws SAXException {
+		}
+	}
+	@SuppressWarnings("serial")
+	private static class StopParsingException extends SAXException {
+
+	}
+	private static class RowsCollector implements SheetContentsHandler {
+		private final RowsListener listener;
+		private String[] cells = new String[16];
+		private int lastColumn;
+		public RowsCollector(RowsListener listener) {
+			this.listener = listener;
+		}
+		@Override
+		public void startRow(int rowNum) {
+			lastColumn = -1;
+		}
+
+		@Override
+		public void endRow(int rowNum) {
+			if (lastColumn < 0)
+				return;
+			String[] row = Arrays.copyOf(cells, lastColumn + 1);
+			for (int i = 0;i < row.length;i++) {
+				if (row[i] == null)
+					row[i] = "";
+			}
+			Arrays.fill(cells, 0, lastColumn + 1, null);
+			try {
+				listener.onRow(row);
+			} catch (SAXException e) {
+				//SheetContentsHandler methods cannot throw checked exceptions.
+				throw new WrappedException(e);
+			}
+		}
+
+		@Override
+		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+			int col = cellReference == null ? lastColumn + 1 : new CellReference(cellReference).getCol();
+			if (col >= cells.length)
+				cells = Arrays.copyOf(cells, Math.max(col + 1, cells.length * 2));
+			cells[col] = formattedValue;
+			lastColumn = Math.max(lastColumn, col);
+		}
+		public void headerFooter(String text, boolean isHeader, String tagName) {
+
+		}
+	}
+	@SuppressWarnings("serial")
+	private static class WrappedException extends RuntimeException {
+		public WrappedException(SAXException e) {
+			super(e);
+		}
+	}
+}
@@ -33,6 +33,7 @@ import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.ss.util.WorkbookUtil;
 import org.apache.poi.util.IOUtils;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 import anywheresoftware.b4a.AbsObjectWrapper;
@@ -44,7 +45,7 @@ import anywheresoftware.b4a.BA.Version;
 import anywheresoftware.b4a.keywords.Bit;
 import anywheresoftware.b4a.objects.collections.List;
 
-@Version(5.01f)
+@Version(5.10f)
 @DependsOn(values = {"poi-5.0.0", "poi-ooxml-5.0.0", "xmlbeans-4.0.0", "commons-collections4-4.4", "commons-compress-1.20", "commons-math3-3.6.1",
 		"commons-codec-1.15", "SparseBitSet-1.2"})
 @ShortName("PoiWorkbook")
@@ -60,6 +61,17 @@ public class PoiWorkbookWrapper extends AbsObjectWrapper<Workbook>{
 		Workbook w = XLSXFormat ? new XSSFWorkbook() : new HSSFWorkbook();
 		setObject(w);
 	}
+	/**
+	 * Creates a new xlsx workbook in streaming mode. Use it to create very large workbooks.
+	 *Only the last RowWindowSize rows of each sheet are kept in memory. Older rows are written to a temporary file and cannot be accessed anymore.
+	 *Call Close after the workbook is saved to delete the temporary files.
+	 *RowWindowSize - Number of rows kept in memory. 100 is a good value.
+	 */
+	public void InitializeNewStreaming(int RowWindowSize) {
+		SXSSFWorkbook w = new SXSSFWorkbook(null, RowWindowSize);
+		w.setCompressTempFiles(true);
+		setObject(w);
+	}
 	/**
 	 * Initializes the workbook and reads the data from the specified file.
 	 *Password - The workbook password. Pass an empty string if there is no password.
@@ -103,6 +115,8 @@ public class PoiWorkbookWrapper extends AbsObjectWrapper<Workbook>{
 	 */
 	public void Close() throws IOException {
 		if (IsInitialized()) {
+			if (getObject() instanceof SXSSFWorkbook)
+				((SXSSFWorkbook)getObject()).dispose();
 			getObject().close();
 			setObject(null);
 		}
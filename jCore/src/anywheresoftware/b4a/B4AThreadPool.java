@@ -17,10 +17,12 @@
  
  package anywheresoftware.b4a;
 
+import java.lang.reflect.Method;
 import java.util.Iterator;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
@@ -37,8 +39,20 @@ public class B4AThreadPool {
 	private final WeakHashMap<Object, ConcurrentHashMap<Integer, Future<?>>> futures = new WeakHashMap<Object, ConcurrentHashMap<Integer, Future<?>>>();
 	private final ConcurrentLinkedQueue<QueuedTask> queueOfTasks = new ConcurrentLinkedQueue<QueuedTask>();
 	private ThreadPoolExecutor pool;
+	//not null when the tasks run on virtual threads.
+	private ExecutorService virtualPool;
 	private static final int THREADS_SPARE = 5;
+	/**
+	 * Set to true (or set the b4j.virtualthreads system property) before the first task is submitted
+	 * to run the background tasks on virtual threads. Ignored when the JVM doesn't support virtual threads.
+	 */
+	public static boolean useVirtualThreads = System.getProperty("b4j.virtualthreads", "false").equals("true");
 	public B4AThreadPool() {
+		if (useVirtualThreads) {
+			virtualPool = createVirtualThreadExecutor();
+			if (virtualPool != null)
+				return;
+		}
 		pool = new ThreadPoolExecutor(0, 300,
 				60L, TimeUnit.SECONDS,
 				new SynchronousQueue<Runnable>()) {
@@ -54,6 +68,18 @@ public class B4AThreadPool {
 		};
 		pool.setThreadFactory(new MyThreadFactory());
 	}
+	/**
+	 * Returns an executor that starts a new virtual thread for each task, or null if virtual threads are not supported.
+	 */
+	public static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			BA.LogError("Virtual threads are not supported by this JVM. Using the standard thread pool.");
+			return null;
+		}
+	}
 	private static class MyThreadFactory implements ThreadFactory {
 		private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
 
@@ -66,8 +92,11 @@ public class B4AThreadPool {
 	}
 
 	public void submit(Runnable task, Object container, int taskId) {
-		
-		if (pool.getActiveCount() > pool.getMaximumPoolSize() - THREADS_SPARE) {
+		if (virtualPool != null) {
+			//no need to limit the number of virtual threads.
+			addFuture(virtualPool.submit(task), container, taskId);
+		}
+		else if (pool.getActiveCount() > pool.getMaximumPoolSize() - THREADS_SPARE) {
 			queueOfTasks.add(new QueuedTask(task, container, taskId));
 		}
 		else {
@@ -107,6 +136,9 @@ public class B4AThreadPool {
 			submitToPool(task, container, taskId);
 			return;
 		}
+		addFuture(f, container, taskId);
+	}
+	private void addFuture(Future<?> f, Object container, int taskId) {
 		ConcurrentHashMap<Integer, Future<?>> map;
 		synchronized (futures) {
 			map = futures.get(container);
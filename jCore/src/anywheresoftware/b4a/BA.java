@@ -25,10 +25,14 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,6 +43,7 @@ import java.util.LinkedList;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 import anywheresoftware.b4a.BA.Hide;
@@ -63,6 +68,13 @@ public abstract class BA {
 	public static WarningEngine warningEngine;
 	public static BA firstInstance;
 	public static boolean exitOnUnhandledExceptions = true;
+	//method handles of the subs, cached per class so new instances of the same class don't recreate them.
+	private static final ClassValue<ConcurrentHashMap<Method, SubHandle>> subHandles = new ClassValue<ConcurrentHashMap<Method, SubHandle>>() {
+		@Override
+		protected ConcurrentHashMap<Method, SubHandle> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<Method, SubHandle>();
+		}
+	};
 	//instance fields
 	public final Object eventsTarget;
 	public HashMap<String, Method> htSubs;
@@ -113,11 +125,7 @@ public abstract class BA {
 			}
 			Method m = htSubs.get(event);
 			if (m != null) {
-				try {
-					return m.invoke(eventsTarget, params);
-				} catch (IllegalArgumentException e) {
-					throw new Exception("Sub " + event + " signature does not match expected signature.");
-				}
+				return getSubHandle(m).invoke(eventsTarget, event, params);
 			}
 			else { 
 				if (throwErrorIfMissingSub) {
@@ -338,10 +346,88 @@ public abstract class BA {
 			htSubs = new HashMap<String, Method>();
 		for (Method m : cls.getDeclaredMethods()) {
 			if (m.getName().startsWith("_")) {
-				htSubs.put(m.getName().substring(1).toLowerCase(cul), m);
+				String name = m.getName().substring(1).toLowerCase(cul);
+				htSubs.put(name, m);
 			}
 		}
 	}
+	private static SubHandle getSubHandle(Method m) {
+		ConcurrentHashMap<Method, SubHandle> handles = subHandles.get(m.getDeclaringClass());
+		SubHandle sh = handles.get(m);
+		if (sh == null) {
+			sh = new SubHandle(m);
+			SubHandle previous = handles.putIfAbsent(m, sh);
+			if (previous != null)
+				sh = previous;
+		}
+		return sh;
+	}
+	/**
+	 * Calls a sub through a method handle with fast paths for up to 3 parameters.
+	 * Uses Method.invoke when the handle cannot be created or the arguments need conversions (checked before the sub runs).
+	 */
+	private static class SubHandle {
+		private final Method method;
+		private final MethodHandle handle;
+		private final Class<?>[] paramTypes;
+		//primitive parameters types are replaced with their wrapper classes.
+		private final Class<?>[] boxedTypes;
+		SubHandle(Method method) {
+			this.method = method;
+			this.paramTypes = method.getParameterTypes();
+			this.boxedTypes = new Class<?>[paramTypes.length];
+			for (int i = 0;i < paramTypes.length;i++)
+				boxedTypes[i] = MethodType.methodType(paramTypes[i]).wrap().returnType();
+			MethodHandle h;
+			try {
+				method.setAccessible(true);
+				h = MethodHandles.lookup().unreflect(method);
+				if (Modifier.isStatic(method.getModifiers()))
+					h = MethodHandles.dropArguments(h, 0, Object.class);
+				h = h.asType(MethodType.genericMethodType(paramTypes.length + 1));
+				if (paramTypes.length > 3)
+					h = h.asSpreader(Object[].class, paramTypes.length);
+			} catch (Exception e) {
+				h = null;
+			}
+			this.handle = h;
+		}
+		public Object invoke(Object target, String event, Object[] params) throws Throwable {
+			int count = params == null ? 0 : params.length;
+			//the fast path is only used when the arguments don't need conversions. Exceptions thrown by the sub propagate as is.
+			if (handle != null && count == paramTypes.length && argumentsMatch(params)) {
+				switch (count) {
+				case 0:
+					return (Object)handle.invokeExact(target);
+				case 1:
+					return (Object)handle.invokeExact(target, params[0]);
+				case 2:
+					return (Object)handle.invokeExact(target, params[0], params[1]);
+				case 3:
+					return (Object)handle.invokeExact(target, params[0], params[1], params[2]);
+				default:
+					return (Object)handle.invokeExact(target, params);
+				}
+			}
+			try {
+				return method.invoke(target, params);
+			} catch (IllegalArgumentException e) {
+				throw new Exception("Sub " + event + " signature does not match expected signature.");
+			}
+		}
+		private boolean argumentsMatch(Object[] params) {
+			for (int i = 0;i < paramTypes.length;i++) {
+				Object o = params[i];
+				if (paramTypes[i].isPrimitive()) {
+					if (o == null || boxedTypes[i] != o.getClass())
+						return false;
+				}
+				else if (o != null && paramTypes[i].isInstance(o) == false)
+					return false;
+			}
+			return true;
+		}
+	}
 	public boolean isActivityPaused() {
 		return false;
 	}
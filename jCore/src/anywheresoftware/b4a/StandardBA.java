@@ -20,32 +20,47 @@
 import java.util.concurrent.ConcurrentHashMap;
 
 import anywheresoftware.b4a.BA.Hide;
+import anywheresoftware.b4a.keywords.BatchMessageLoop;
+import anywheresoftware.b4a.keywords.MessageLoop;
 import anywheresoftware.b4a.keywords.SimpleMessageLoop;
 
 @Hide
 public class StandardBA extends BA{
 	private final Thread ownerThread;
-	
-	private static final ConcurrentHashMap<Thread, SimpleMessageLoop> loops = new ConcurrentHashMap<Thread, SimpleMessageLoop>();
+	//the loop of the owner thread. The BA keeps its own reference so it is not affected by removeMessageLoop.
+	private final MessageLoop loop;
+	/**
+	 * Set to true (or set the b4j.batchmessageloop system property) before the first BA is created
+	 * to use the lock-free BatchMessageLoop instead of SimpleMessageLoop.
+	 */
+	public static boolean useBatchMessageLoop = System.getProperty("b4j.batchmessageloop", "false").equals("true");
+	private static final ConcurrentHashMap<Thread, MessageLoop> loops = new ConcurrentHashMap<Thread, MessageLoop>();
 	public StandardBA(String packageName, String className, Object eventsTarget) {
 		super(packageName, className, eventsTarget);
 		ownerThread = Thread.currentThread();
 		synchronized (loops) {
 			if (loops.containsKey(ownerThread) == false) {
-				loops.put(ownerThread, new SimpleMessageLoop());
+				loops.put(ownerThread, useBatchMessageLoop ? new BatchMessageLoop() : new SimpleMessageLoop());
 			}
+			loop = loops.get(ownerThread);
 		}
 	}
 	public void startMessageLoop() throws InterruptedException {
 		if (ownerThread != Thread.currentThread())
 			throw new RuntimeException("StartMessageLoop called from wrong thread.");
-		SimpleMessageLoop loop = loops.get(ownerThread);
 		loop.runMessageLoop();
 	}
+	/**
+	 * Removes the message loop of the current thread from the loops map.
+	 * Should be called by threads that are not reused (virtual threads) once their message loop has ended.
+	 * A BA created afterwards on the same thread will get a new loop.
+	 */
+	public static void removeMessageLoop() {
+		loops.remove(Thread.currentThread());
+	}
 
 	@Override
 	public void postRunnable(Runnable runnable) {
-		SimpleMessageLoop loop = loops.get(ownerThread);
 		loop.put(runnable);
 	}
 	@Override
@@ -58,9 +73,14 @@ public class StandardBA extends BA{
 	}
 	@Override
 	public void cleanMessageLoop() throws InterruptedException {
-		SimpleMessageLoop loop = loops.get(ownerThread);
 		loop.clear();
 		
 	}
+	/**
+	 * Returns the message loop of the owner thread. Can be used to read the BatchMessageLoop metrics.
+	 */
+	public MessageLoop getMessageLoop() {
+		return loop;
+	}
 
 }
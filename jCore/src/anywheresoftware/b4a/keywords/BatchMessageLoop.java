@@ -0,0 +1,130 @@
+
+/*
+ * Copyright 2010 - 2020 Anywhere Software (www.b4x.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package anywheresoftware.b4a.keywords;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import anywheresoftware.b4a.BA.Hide;
+
+/**
+ * Message loop backed by a lock-free multi-producer single-consumer linked queue.
+ *The owner thread drains all pending messages in one pass and parks when the queue is empty.
+ *Enabled with the b4j.batchmessageloop system property.
+ */
+@Hide
+public class BatchMessageLoop implements MessageLoop {
+	private static final int SPINS = 100;
+	//producers append to the tail. Only the consumer thread touches head.
+	private final AtomicReference<Node> tail;
+	private Node head;
+	private final AtomicLong posted = new AtomicLong();
+	private volatile long processed;
+	private volatile long maxLatency;
+	private volatile Thread consumer;
+	private volatile boolean parked;
+	
+	public BatchMessageLoop() {
+		head = new Node(null);
+		tail = new AtomicReference<Node>(head);
+	}
+	@Override
+	public void clear() {
+		long count = 0;
+		Node n;
+		while ((n = head.next) != null) {
+			head = n;
+			n.runnable = null;
+			count++;
+		}
+		processed += count;
+	}
+	@Override
+	public void put(Runnable runnable) {
+		Node n = new Node(runnable);
+		Node prev = tail.getAndSet(n);
+		prev.next = n;
+		posted.incrementAndGet();
+		if (parked)
+			LockSupport.unpark(consumer);
+	}
+	@Override
+	public void runMessageLoop() throws InterruptedException {
+		consumer = Thread.currentThread();
+		int idle = 0;
+		while (true) {
+			Node n = head.next;
+			if (n == null) {
+				if (++idle < SPINS) {
+					Thread.yield();
+					continue;
+				}
+				parked = true;
+				if (head.next == null)
+					LockSupport.park(this);
+				parked = false;
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				continue;
+			}
+			idle = 0;
+			long count = 0;
+			try {
+				//drain everything that is already queued.
+				do {
+					head = n;
+					Runnable r = n.runnable;
+					n.runnable = null;
+					count++;
+					long latency = System.nanoTime() - n.time;
+					if (latency > maxLatency)
+						maxLatency = latency;
+					if (r == SimpleMessageLoop.STOP)
+						return;
+					r.run();
+				} while ((n = head.next) != null);
+			} finally {
+				processed += count;
+			}
+		}
+	}
+	/**
+	 * Returns the number of messages waiting in the queue.
+	 */
+	public long getQueueDepth() {
+		return Math.max(0, posted.get() - processed);
+	}
+	/**
+	 * Returns the longest time, in nanoseconds, that a message waited in the queue since the last call to resetMaxLatency.
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+	public void resetMaxLatency() {
+		maxLatency = 0;
+	}
+	private static class Node {
+		volatile Node next;
+		Runnable runnable;
+		final long time;
+		Node(Runnable runnable) {
+			this.runnable = runnable;
+			this.time = System.nanoTime();
+		}
+	}
+}
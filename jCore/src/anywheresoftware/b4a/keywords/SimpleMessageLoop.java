@@ -22,7 +22,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import anywheresoftware.b4a.BA.Hide;
 
 @Hide
-public class SimpleMessageLoop {
+public class SimpleMessageLoop implements MessageLoop {
 	private LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
 	public static final Runnable STOP = new Runnable() {
 		
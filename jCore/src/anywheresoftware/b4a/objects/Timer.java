@@ -17,7 +17,11 @@
  
  package anywheresoftware.b4a.objects;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import anywheresoftware.b4a.BA;
@@ -38,6 +42,9 @@ public class Timer implements CheckForReinitialize{
 	private int relevantTimer = 0;
 	private BA ba;
 	private String eventName;
+	private ScheduledFuture<?> future;
+	//all timers share a single scheduling thread.
+	private static volatile ScheduledThreadPoolExecutor scheduler;
 	/**
 	 * Initializes the timer with the event sub prefix and the specified interval (measured in milliseconds).
 	 *Example:<code>
@@ -79,10 +86,26 @@ public class Timer implements CheckForReinitialize{
 	public long getInterval() {
 		return interval;
 	}
+	private static ScheduledThreadPoolExecutor getScheduler() {
+		if (scheduler == null) {
+			synchronized (Timer.class) {
+				if (scheduler == null) {
+					ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = Executors.defaultThreadFactory().newThread(r);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					s.setRemoveOnCancelPolicy(true);
+					scheduler = s;
+				}
+			}
+		}
+		return scheduler;
+	}
 	private void startTicking() {
-		Thread t = new Thread(new TickTack(relevantTimer));
-		t.setDaemon(true);
-		t.start();
+		future = getScheduler().scheduleWithFixedDelay(new TickTack(relevantTimer), interval, interval, TimeUnit.MILLISECONDS);
 	}
 
 	public void setEnabled(boolean Enabled) {
@@ -113,40 +136,34 @@ public class Timer implements CheckForReinitialize{
 		}
 		@Override
 		public void run() {
-			while (true) {
-				try {
-					if (currentTimer != Timer.this.relevantTimer) //old messages in the queue
-						return;
-					Thread.sleep(interval);
-					if (semaphore != null) {
-						if (semaphore.tryAcquire(10000, TimeUnit.MILLISECONDS) == false)
-							continue;
-					}
-				} catch (InterruptedException ie) {
-					throw new RuntimeException(ie);
-				}
-				ba.postRunnable(new Runnable() {
-
-					@Override
-					public void run() {
-						try {
-							if (currentTimer != Timer.this.relevantTimer) //old messages in the queue
-								return;
-							ba.raiseEvent2(Timer.this, false, eventName, true);
-						} finally {
-							if (semaphore != null)
-								semaphore.release();
-						}
+			if (currentTimer != Timer.this.relevantTimer) //old messages in the queue
+				return;
+			//the scheduler thread is shared, so a tick that is still being handled is skipped instead of waited for.
+			if (semaphore != null && semaphore.tryAcquire() == false)
+				return;
+			ba.postRunnable(new Runnable() {
 
+				@Override
+				public void run() {
+					try {
+						if (currentTimer != Timer.this.relevantTimer) //old messages in the queue
+							return;
+						ba.raiseEvent2(Timer.this, false, eventName, true);
+					} finally {
+						if (semaphore != null)
+							semaphore.release();
 					}
-				});
-			}
-
 
+				}
+			});
 		}
 	}
 	private void stopTicking() {
 		relevantTimer++;
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
 	}
 
 }